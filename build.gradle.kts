@@ -12,7 +12,6 @@ repositories {
     mavenCentral()
 }
 dependencies {
-    implementation("de.undercouch:gradle-download-task:4.0.2")
     implementation("com.jayway.jsonpath:json-path:2.4.0")
     implementation("org.yaml:snakeyaml:1.20")
     implementation("commons-io:commons-io:2.6")
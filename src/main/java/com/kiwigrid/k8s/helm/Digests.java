@@ -0,0 +1,133 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * SHA-256 helpers used to fingerprint charts and values.
+ */
+public final class Digests {
+
+	private static final byte MISSING = 0;
+	private static final byte PRESENT = 1;
+
+	private final MessageDigest digest;
+
+	private Digests() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static Digests sha256() {
+		return new Digests();
+	}
+
+	/**
+	 * @return the usual SHA-256 checksum of the file's content, as published along with downloads or listed in
+	 * repository indexes
+	 */
+	public static String checksum(File file) throws IOException {
+		Digests digests = sha256();
+		digests.updateFrom(file);
+		return digests.hex();
+	}
+
+	// every part is added with a marker and its length, so no sequence of parts digests like another one
+	public Digests add(String value) {
+		return addContent(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Adds the content of a file, a missing file is added as such.
+	 */
+	public Digests addFile(File file) throws IOException {
+		if (!file.isFile()) {
+			return addMissing();
+		}
+		long length = file.length();
+		addPresent(length);
+		if (updateFrom(file) != length) {
+			throw new IOException(file + " changed while it was digested");
+		}
+		return this;
+	}
+
+	/**
+	 * Adds content the same way {@link #addFile(File)} does, {@code null} is added like a missing file.
+	 */
+	public Digests addContent(byte[] content) {
+		if (content == null) {
+			return addMissing();
+		}
+		addPresent(content.length);
+		digest.update(content);
+		return this;
+	}
+
+	/**
+	 * Adds relative path and content of every file below the given directory in a stable order.
+	 */
+	public Digests addDirectory(File directory) throws IOException {
+		if (!directory.isDirectory()) {
+			return addMissing();
+		}
+		Path root = directory.toPath();
+		List<Path> files;
+		try (Stream<Path> paths = Files.walk(root)) {
+			files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		addPresent(files.size());
+		for (Path file : files) {
+			add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+			addFile(file.toFile());
+		}
+		return this;
+	}
+
+	private Digests addMissing() {
+		digest.update(MISSING);
+		return this;
+	}
+
+	private void addPresent(long length) {
+		digest.update(PRESENT);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			digest.update((byte) (length >>> shift));
+		}
+	}
+
+	private long updateFrom(File file) throws IOException {
+		long total = 0;
+		byte[] buffer = new byte[8192];
+		try (InputStream inputStream = new FileInputStream(file)) {
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+				total += read;
+			}
+		}
+		return total;
+	}
+
+	public String hex() {
+		byte[] bytes = digest.digest();
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,102 @@
+package com.kiwigrid.k8s.helm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.gradle.api.Action;
+import org.gradle.api.logging.Logger;
+import org.gradle.process.ExecResult;
+import org.gradle.process.ExecSpec;
+
+/**
+ * Runs every helm command in a freshly forked helm process.
+ */
+class ForkingHelmExecutor implements HelmExecutor {
+
+	private final Function<Action<? super ExecSpec>, ExecResult> exec;
+	private final Logger logger;
+
+	ForkingHelmExecutor(Function<Action<? super ExecSpec>, ExecResult> exec, Logger logger) {
+		this.exec = exec;
+		this.logger = logger;
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult exec(HelmSpec helmSpec, Object... args) {
+		return execWithOutput(helmSpec, new HelmOutput(), args);
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult execWithOutput(HelmSpec helmSpec, HelmOutput helmOutput, Object... args) {
+		if (logger.isDebugEnabled()) {
+			String command = Arrays.stream(args)
+					.map(Object::toString)
+					.collect(Collectors.joining(" "));
+			logger.debug("Executing : helm " + command);
+		}
+		// both channels are written by threads of their own
+		Tail output = new Tail(helmOutput.getTailLines());
+		Tail standardOutput = new Tail(helmOutput.getTailLines());
+		Tail errorOutput = new Tail(helmOutput.getTailLines());
+		Consumer<String> standardOutputConsumer = helmOutput.getStandardOutputConsumer() != null
+				? standardOutput.andThen(helmOutput.getStandardOutputConsumer())
+				: standardOutput.andThen(output);
+		Consumer<String> errorOutputConsumer = helmOutput.getErrorOutputConsumer() != null
+				? errorOutput.andThen(output).andThen(helmOutput.getErrorOutputConsumer())
+				: errorOutput.andThen(output);
+		if (logger.isDebugEnabled()) {
+			standardOutputConsumer = standardOutputConsumer.andThen(line -> logger.debug("helm out: {}", line));
+			errorOutputConsumer = errorOutputConsumer.andThen(line -> logger.debug("helm err: {}", line));
+		}
+		ExecResult execResult;
+		long outputBytes;
+		try (LineOutputStream standardOutputStream = new LineOutputStream(standardOutputConsumer);
+				LineOutputStream errorOutputStream = new LineOutputStream(errorOutputConsumer))
+		{
+			execResult = exec.apply(execSpec -> {
+				HelmPlugin.configureFromExtension(helmSpec, args).execute(execSpec);
+				execSpec.setStandardOutput(standardOutputStream);
+				execSpec.setErrorOutput(errorOutputStream);
+				execSpec.setIgnoreExitValue(true);
+			});
+			outputBytes = standardOutputStream.getByteCount() + errorOutputStream.getByteCount();
+		}
+		return new HelmPlugin.HelmExecResult(execResult,
+				output.toArray(),
+				standardOutput.toArray(),
+				errorOutput.toArray(),
+				outputBytes);
+	}
+
+	/**
+	 * Keeps the last lines handed to it.
+	 */
+	private static class Tail implements Consumer<String> {
+
+		private final int maximumLines;
+		private final Deque<String> lines = new ArrayDeque<>();
+
+		private Tail(int maximumLines) {
+			this.maximumLines = maximumLines;
+		}
+
+		@Override
+		public synchronized void accept(String line) {
+			if (maximumLines == 0) {
+				return;
+			}
+			if (lines.size() == maximumLines) {
+				lines.removeFirst();
+			}
+			lines.addLast(line);
+		}
+
+		private synchronized String[] toArray() {
+			return lines.toArray(new String[0]);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.util.Map;
+
+import org.gradle.api.Named;
+import org.gradle.api.Project;
+import org.gradle.api.provider.MapProperty;
+
+/**
+ * One of several charts of a project, see {@link HelmPluginExtension#getCharts()}.
+ */
+public class HelmChart implements Named {
+
+	private final String name;
+
+	private File source; // "${project.projectDir}/src/main/helm/${name}"
+
+	private File tests; // "${project.projectDir}/src/test/helm/${name}"
+
+	private final MapProperty<String, Object> expansions;
+
+	public HelmChart(String name, Project project, HelmPluginExtension extension) {
+		this.name = name;
+		source = project.file("src/main/helm/" + name);
+		tests = project.file("src/test/helm/" + name);
+		expansions = project.getObjects().mapProperty(String.class, Object.class);
+		expansions.convention(extension.getExpansions());
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public File getSource() {
+		return source;
+	}
+
+	public void setSource(File source) {
+		this.source = source;
+	}
+
+	/**
+	 * Folder of the tests of the chart, the same no matter how many charts are declared.
+	 */
+	public File getTests() {
+		return tests;
+	}
+
+	public void setTests(File tests) {
+		this.tests = tests;
+	}
+
+	/**
+	 * Defaults to the expansions of the helm extension.
+	 */
+	public MapProperty<String, Object> getExpansions() {
+		return expansions;
+	}
+
+	public void setExpansions(Map<String, Object> expansions) {
+		this.expansions.set(expansions);
+	}
+
+	String getTaskNameSuffix() {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+}
@@ -0,0 +1,50 @@
+package com.kiwigrid.k8s.helm;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logging;
+import org.gradle.process.ExecOperations;
+
+/**
+ * Backend running helm commands on behalf of the plugin tasks.
+ */
+public interface HelmExecutor {
+
+	/**
+	 * Runs helm with the given arguments, never fails on a non-zero exit value.
+	 */
+	HelmPlugin.HelmExecResult exec(HelmSpec helmSpec, Object... args);
+
+	/**
+	 * Runs helm with the given arguments, streaming its output line by line to the given consumers, never fails on a
+	 * non-zero exit value.
+	 */
+	HelmPlugin.HelmExecResult execWithOutput(HelmSpec helmSpec, HelmOutput helmOutput, Object... args);
+
+	/**
+	 * @return this executor, recording every execution in the given metrics
+	 */
+	default HelmExecutor meteredBy(HelmMetrics metrics, String taskPath) {
+		return new MeteredHelmExecutor(this, metrics, taskPath);
+	}
+
+	/**
+	 * @return this executor, tracing every execution as a span
+	 */
+	default HelmExecutor tracedBy(HelmTracer tracer) {
+		return new TracedHelmExecutor(this, tracer);
+	}
+
+	/**
+	 * @return an executor forking a new helm process per command from within a task action
+	 */
+	static HelmExecutor forking(Project project) {
+		return new ForkingHelmExecutor(project::exec, project.getLogger());
+	}
+
+	/**
+	 * @return an executor forking a new helm process per command, usable from worker actions
+	 */
+	static HelmExecutor forking(ExecOperations execOperations) {
+		return new ForkingHelmExecutor(execOperations::exec, Logging.getLogger(HelmExecutor.class));
+	}
+}
@@ -0,0 +1,132 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.inject.Inject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ArchiveOperations;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Downloads, verifies and extracts a helm archive into the shared executable directory, using injected services only
+ * so the download task stays compatible with the configuration cache.
+ */
+public abstract class HelmInstallation {
+
+	private static final Object HELM_CACHE_MONITOR = new Object();
+	private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+	private static final int READ_TIMEOUT_MILLIS = 60_000;
+
+	private static final Logger LOGGER = Logging.getLogger(HelmInstallation.class);
+
+	@Inject
+	protected abstract FileSystemOperations getFileSystemOperations();
+
+	@Inject
+	protected abstract ArchiveOperations getArchiveOperations();
+
+	/**
+	 * @param expectedChecksum SHA-256 checksum of the archive, {@code null} to take it from the {@code .sha256} file
+	 * next to the archive, if there is one
+	 */
+	public void install(HelmSpec helmSpec, String expectedChecksum) throws IOException {
+		File executableDirectory = helmSpec.getHelmExecutableDirectory();
+		File executable = new File(HelmPlugin.getHelmExecutable(helmSpec));
+		Files.createDirectories(executableDirectory.toPath());
+		// locks out other builds, parallel projects of this build are serialized by the monitor
+		synchronized (HELM_CACHE_MONITOR) {
+			try (FileChannel lockChannel = FileChannel.open(new File(executableDirectory, ".lock").toPath(),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+				 FileLock ignored = lockChannel.lock())
+			{
+				if (executable.isFile()) {
+					return;
+				}
+				File downloadFile = HelmPlugin.getHelmDownloadFile(helmSpec);
+				try {
+					download(helmSpec, downloadFile);
+					verifyDownload(helmSpec, expectedChecksum, downloadFile);
+					extract(downloadFile, executableDirectory, executable);
+				} finally {
+					Files.deleteIfExists(downloadFile.toPath());
+				}
+			}
+		}
+	}
+
+	private static void download(HelmSpec helmSpec, File downloadFile) throws IOException {
+		LOGGER.lifecycle("Downloading helm {} from {}", helmSpec.getVersion(), helmSpec.getHelmDownloadUrl());
+		FileUtils.copyURLToFile(new URL(helmSpec.getHelmDownloadUrl()),
+				downloadFile,
+				CONNECT_TIMEOUT_MILLIS,
+				READ_TIMEOUT_MILLIS);
+	}
+
+	private static void verifyDownload(HelmSpec helmSpec, String configuredChecksum, File downloadFile) throws IOException {
+		String expectedChecksum = configuredChecksum != null ? configuredChecksum : publishedChecksum(helmSpec);
+		if (expectedChecksum == null) {
+			// mirrors and proxies often leave out the checksum files
+			LOGGER.warn("No checksum of {} found, installing it unverified", helmSpec.getHelmDownloadUrl());
+			return;
+		}
+		String actualChecksum = Digests.checksum(downloadFile);
+		if (!expectedChecksum.equalsIgnoreCase(actualChecksum)) {
+			throw new GradleException("Checksum of "
+					+ helmSpec.getHelmDownloadUrl()
+					+ " is "
+					+ actualChecksum
+					+ " but "
+					+ expectedChecksum
+					+ " was expected.");
+		}
+	}
+
+	private static String publishedChecksum(HelmSpec helmSpec) {
+		String checksumUrl = helmSpec.getHelmDownloadUrl() + ".sha256";
+		try (InputStream checksumStream = new URL(checksumUrl).openStream()) {
+			return IOUtils.toString(checksumStream, StandardCharsets.US_ASCII).trim().split("\\s+")[0];
+		} catch (IOException e) {
+			LOGGER.info("Unable to fetch checksum {}", checksumUrl, e);
+			return null;
+		}
+	}
+
+	private void extract(File downloadFile, File executableDirectory, File executable) throws IOException {
+		File extractionDirectory = Files.createTempDirectory(executableDirectory.toPath(), "extract").toFile();
+		getFileSystemOperations().copy(copySpec -> {
+			copySpec.from(getArchiveOperations().tarTree(downloadFile));
+			copySpec.into(extractionDirectory);
+			copySpec.eachFile(fileCopyDetails -> {
+				fileCopyDetails.setPath(fileCopyDetails.getName());
+			});
+			copySpec.setIncludeEmptyDirs(false);
+		});
+		File[] extractedFiles = extractionDirectory.listFiles();
+		if (extractedFiles != null) {
+			// the executable is moved last, its presence marks a complete installation
+			Arrays.sort(extractedFiles, Comparator.comparing(file -> file.getName().equals(executable.getName())));
+			for (File extracted : extractedFiles) {
+				Files.move(extracted.toPath(),
+						new File(executableDirectory, extracted.getName()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		getFileSystemOperations().delete(deleteSpec -> deleteSpec.delete(extractionDirectory));
+	}
+}
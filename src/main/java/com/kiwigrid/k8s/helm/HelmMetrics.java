@@ -0,0 +1,207 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import groovy.json.JsonOutput;
+import org.gradle.api.Project;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Collects metrics of all helm executions, test cases and cache accesses of a build.
+ * <p>
+ * When the build finishes a summary is logged and the complete metrics are written as JSON to
+ * {@code build/reports/helm/metrics.json} of the root project.
+ */
+public abstract class HelmMetrics implements BuildService<HelmMetrics.Parameters>, AutoCloseable {
+
+	public static final String SERVICE_NAME = "helmMetrics";
+	private static final int SLOWEST_TEST_CASES = 5;
+
+	private static final Logger LOGGER = Logging.getLogger(HelmMetrics.class);
+
+	private final Queue<Execution> executions = new ConcurrentLinkedQueue<>();
+	private final Queue<TestCase> testCases = new ConcurrentLinkedQueue<>();
+	private final Map<String, CacheAccesses> cacheAccesses = new ConcurrentHashMap<>();
+
+	public interface Parameters extends BuildServiceParameters {
+		RegularFileProperty getReportFile();
+	}
+
+	public static Provider<HelmMetrics> registerIfAbsent(Project project) {
+		Project rootProject = project.getRootProject();
+		return project.getGradle().getSharedServices().registerIfAbsent(SERVICE_NAME, HelmMetrics.class, spec -> spec
+				.getParameters()
+				.getReportFile()
+				.set(rootProject.getLayout().getBuildDirectory().file("reports/helm/metrics.json")));
+	}
+
+	public void recordExecution(Execution execution) {
+		executions.add(execution);
+	}
+
+	public void recordTestCase(String taskPath, String chart, String name, long durationMillis) {
+		testCases.add(new TestCase(taskPath, chart, name, durationMillis));
+	}
+
+	/**
+	 * @param cache name of the cache accessed
+	 * @param hit whether the cache had an entry
+	 */
+	public void recordCacheAccess(String cache, boolean hit) {
+		CacheAccesses accesses = cacheAccesses.computeIfAbsent(cache, name -> new CacheAccesses());
+		(hit ? accesses.hits : accesses.misses).incrementAndGet();
+	}
+
+	@Override
+	public void close() {
+		if (executions.isEmpty() && testCases.isEmpty() && cacheAccesses.isEmpty()) {
+			return;
+		}
+		Map<String, List<Execution>> executionsBySubcommand = executions.stream()
+				.collect(Collectors.groupingBy(execution -> execution.subcommand, TreeMap::new, Collectors.toList()));
+		List<TestCase> slowestTestCases = testCases.stream()
+				.sorted(Comparator.comparingLong((TestCase testCase) -> testCase.durationMillis).reversed())
+				.limit(SLOWEST_TEST_CASES)
+				.collect(Collectors.toList());
+		Map<String, CacheAccesses> sortedCacheAccesses = new TreeMap<>(cacheAccesses);
+
+		LOGGER.lifecycle("Helm: {} executions in {} ms",
+				executions.size(),
+				executions.stream().mapToLong(execution -> execution.durationMillis).sum());
+		executionsBySubcommand.forEach((subcommand, subcommandExecutions) -> LOGGER.lifecycle(
+				"  helm {}: {} executions in {} ms",
+				subcommand,
+				subcommandExecutions.size(),
+				subcommandExecutions.stream().mapToLong(execution -> execution.durationMillis).sum()));
+		slowestTestCases.forEach(testCase -> LOGGER.lifecycle("  test case {} of {}: {} ms",
+				testCase.name,
+				testCase.chart,
+				testCase.durationMillis));
+		sortedCacheAccesses.forEach((cache, accesses) -> LOGGER.lifecycle("  {} cache: {} hits, {} misses",
+				cache,
+				accesses.hits.get(),
+				accesses.misses.get()));
+
+		File reportFile = getParameters().getReportFile().get().getAsFile();
+		try {
+			Files.createDirectories(reportFile.getParentFile().toPath());
+			Files.write(reportFile.toPath(),
+					JsonOutput.prettyPrint(JsonOutput.toJson(report(executionsBySubcommand, slowestTestCases, sortedCacheAccesses)))
+							.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		LOGGER.info("Wrote helm metrics to {}", reportFile);
+	}
+
+	private Map<String, Object> report(Map<String, List<Execution>> executionsBySubcommand, List<TestCase> slowestTestCases, Map<String, CacheAccesses> cacheAccesses) {
+		Map<String, Object> subcommands = new LinkedHashMap<>();
+		executionsBySubcommand.forEach((subcommand, subcommandExecutions) -> {
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("executions", subcommandExecutions.size());
+			summary.put("durationMillis", subcommandExecutions.stream().mapToLong(execution -> execution.durationMillis).sum());
+			summary.put("maxDurationMillis", subcommandExecutions.stream().mapToLong(execution -> execution.durationMillis).max().orElse(0));
+			summary.put("failures", subcommandExecutions.stream().filter(execution -> execution.exitValue != 0).count());
+			summary.put("outputBytes", subcommandExecutions.stream().mapToLong(execution -> execution.outputBytes).sum());
+			subcommands.put(subcommand, summary);
+		});
+		Map<String, Object> caches = new LinkedHashMap<>();
+		cacheAccesses.forEach((cache, accesses) -> {
+			Map<String, Object> summary = new LinkedHashMap<>();
+			int hits = accesses.hits.get();
+			int misses = accesses.misses.get();
+			summary.put("hits", hits);
+			summary.put("misses", misses);
+			summary.put("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+			caches.put(cache, summary);
+		});
+
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("executions", executions.size());
+		report.put("durationMillis", executions.stream().mapToLong(execution -> execution.durationMillis).sum());
+		report.put("subcommands", subcommands);
+		report.put("slowestTestCases", slowestTestCases.stream().map(TestCase::toMap).collect(Collectors.toList()));
+		report.put("caches", caches);
+		report.put("invocations", executions.stream().map(Execution::toMap).collect(Collectors.toList()));
+		return report;
+	}
+
+	/**
+	 * A single run of the helm executable.
+	 */
+	public static class Execution {
+		final String subcommand;
+		final String chart;
+		final String taskPath;
+		final long durationMillis;
+		final int exitValue;
+		final long outputBytes;
+
+		public Execution(String subcommand, String chart, String taskPath, long durationMillis, int exitValue, long outputBytes) {
+			this.subcommand = subcommand;
+			this.chart = chart;
+			this.taskPath = taskPath;
+			this.durationMillis = durationMillis;
+			this.exitValue = exitValue;
+			this.outputBytes = outputBytes;
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("subcommand", subcommand);
+			map.put("chart", chart);
+			map.put("task", taskPath);
+			map.put("durationMillis", durationMillis);
+			map.put("exitValue", exitValue);
+			map.put("outputBytes", outputBytes);
+			return map;
+		}
+	}
+
+	private static class TestCase {
+		final String taskPath;
+		final String chart;
+		final String name;
+		final long durationMillis;
+
+		private TestCase(String taskPath, String chart, String name, long durationMillis) {
+			this.taskPath = taskPath;
+			this.chart = chart;
+			this.name = name;
+			this.durationMillis = durationMillis;
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("name", name);
+			map.put("chart", chart);
+			map.put("task", taskPath);
+			map.put("durationMillis", durationMillis);
+			return map;
+		}
+	}
+
+	private static class CacheAccesses {
+		final AtomicInteger hits = new AtomicInteger();
+		final AtomicInteger misses = new AtomicInteger();
+	}
+}
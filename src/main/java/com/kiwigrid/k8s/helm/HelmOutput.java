@@ -0,0 +1,52 @@
+package com.kiwigrid.k8s.helm;
+
+import java.util.function.Consumer;
+
+/**
+ * Where the output of a helm command goes while helm is running.
+ * <p>
+ * Standard and error output are handed line by line to the registered consumers. The result only keeps the last
+ * lines of each channel for error messages, so large outputs like rendered charts are never held as a whole. Standard
+ * output handed to a consumer is left out of the combined output of the result.
+ */
+public class HelmOutput {
+
+	public static final int DEFAULT_TAIL_LINES = 200;
+
+	private Consumer<String> standardOutputConsumer;
+	private Consumer<String> errorOutputConsumer;
+	private int tailLines = DEFAULT_TAIL_LINES;
+
+	public HelmOutput onStandardOutput(Consumer<String> consumer) {
+		standardOutputConsumer = standardOutputConsumer != null ? standardOutputConsumer.andThen(consumer) : consumer;
+		return this;
+	}
+
+	public HelmOutput onErrorOutput(Consumer<String> consumer) {
+		errorOutputConsumer = errorOutputConsumer != null ? errorOutputConsumer.andThen(consumer) : consumer;
+		return this;
+	}
+
+	/**
+	 * @param tailLines number of lines kept per channel in the result
+	 */
+	public HelmOutput tailLines(int tailLines) {
+		if (tailLines < 0) {
+			throw new IllegalArgumentException("Number of tail lines must not be negative: " + tailLines);
+		}
+		this.tailLines = tailLines;
+		return this;
+	}
+
+	Consumer<String> getStandardOutputConsumer() {
+		return standardOutputConsumer;
+	}
+
+	Consumer<String> getErrorOutputConsumer() {
+		return errorOutputConsumer;
+	}
+
+	int getTailLines() {
+		return tailLines;
+	}
+}
@@ -10,17 +10,18 @@ import com.kiwigrid.k8s.helm.tasks.HelmDeployTask;
 import com.kiwigrid.k8s.helm.tasks.HelmInitTask;
 import com.kiwigrid.k8s.helm.tasks.HelmRepoSyncTask;
 import com.kiwigrid.k8s.helm.tasks.HelmTestTask;
-import de.undercouch.gradle.tasks.download.Download;
 import org.gradle.api.Action;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
-import org.gradle.api.logging.Logger;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.plugins.BasePlugin;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskContainer;
 import org.gradle.api.tasks.TaskProvider;
 import org.gradle.internal.os.OperatingSystem;
 import org.gradle.language.base.plugins.LifecycleBasePlugin;
+import org.gradle.process.ExecOperations;
 import org.gradle.process.ExecResult;
 import org.gradle.process.ExecSpec;
 import org.gradle.process.internal.ExecException;
@@ -30,12 +31,19 @@ import org.yaml.snakeyaml.error.YAMLException;
 
 public class HelmPlugin implements Plugin<Project> {
 
+	/**
+	 * @deprecated not thread safe, but shared by the concurrently running work actions, use {@link #yaml()} instead
+	 */
+	@Deprecated
 	public static final Yaml YAML = new Yaml();
+	// snakeyaml instances keep parser state, so each thread, e.g. of the worker actions, gets one of its own
+	private static final ThreadLocal<Yaml> THREAD_YAML = ThreadLocal.withInitial(Yaml::new);
 	public static final String EXTENSION_NAME = "helm";
 
 	public static final String LINT_WITH_VALUES_VERSION = "2.9.0-rc3";
 	public static final String TEMPLATE_WITH_OUTPUT_VERSION = "2.8.0";
 	public static final String REPO_AUTHENTICATION_VERSION = "2.9.0-rc3";
+	public static final String TEMPLATE_SHOW_ONLY_VERSION = "3.0.0";
 	public static final String VERSION_3 = "3.0.0";
 
 	public static String getHelmExecutable(HelmSpec helmSpec) {
@@ -51,6 +59,10 @@ public class HelmPlugin implements Plugin<Project> {
 		return versionIsGreaterThanOrEquals(version, TEMPLATE_WITH_OUTPUT_VERSION);
 	}
 
+	public static boolean templateShowOnlySupported(String version) {
+		return versionIsGreaterThanOrEquals(version, TEMPLATE_SHOW_ONLY_VERSION);
+	}
+
 	public static boolean authenticatedReposSupported(String version) {
 		return versionIsGreaterThanOrEquals(version, REPO_AUTHENTICATION_VERSION);
 	}
@@ -77,7 +89,6 @@ public class HelmPlugin implements Plugin<Project> {
 	public void apply(Project project) {
 		// apply required plugins
 		project.getPluginManager().apply("base");
-		project.getPluginManager().apply("de.undercouch.download");
 
 		// register DSL
 		HelmPluginExtension extension = project
@@ -89,9 +100,8 @@ public class HelmPlugin implements Plugin<Project> {
 
 		// create required tasks
 		TaskContainer projectTasks = project.getTasks();
-		TaskProvider<Download> downloadHelm = projectTasks.register(
+		TaskProvider<Task> downloadHelm = projectTasks.register(
 				"downloadHelm",
-				Download.class,
 				createDownloadConfigurer(project, extension)
 		);
 
@@ -100,7 +110,7 @@ public class HelmPlugin implements Plugin<Project> {
 				HelmInitTask.class,
 				helmInitTask -> {
 					helmInitTask.dependsOn(downloadHelm);
-					helmInitTask.copyFrom(extension);
+					helmInitTask.conventionsFrom(extension);
 				}
 		);
 
@@ -110,25 +120,35 @@ public class HelmPlugin implements Plugin<Project> {
 				helmRepoSyncTask -> {
 					helmRepoSyncTask.dependsOn(helmInit);
 					helmRepoSyncTask.setRepositories(extension.getRepositories());
-					helmRepoSyncTask.copyFrom(extension);
+					helmRepoSyncTask.conventionsFrom(extension);
 				}
 		);
 
+		// evaluated when the task graph is ready, the configuration cache stores the value instead of the extension
+		Provider<Boolean> chartsDeclared = project.provider(() -> !extension.getCharts().isEmpty());
+		Provider<Boolean> deployTargetDeclared = project.provider(() -> extension.getDeployTo() != null);
 		TaskProvider<HelmBuildTask> helmChartBuild = projectTasks.register(
 				"helmChartBuild",
 				HelmBuildTask.class,
 				helmBuildTask -> {
 					helmBuildTask.dependsOn(helmRepoSync);
 					helmBuildTask.setExpansions(extension.getExpansions());
-					helmBuildTask.copyFrom(extension);
+					helmBuildTask.conventionsFrom(extension);
+					// with charts declared this task only aggregates their build tasks
+					helmBuildTask.onlyIf(element -> !chartsDeclared.get());
 				});
+		// the charts are consumed as the outputs of the tasks building them, never as a folder shared by several tasks
+		ConfigurableFileCollection builtCharts = project
+				.files(helmChartBuild.map(HelmBuildTask::getOutputDirectory))
+				.builtBy(helmChartBuild);
 		projectTasks.named(BasePlugin.ASSEMBLE_TASK_NAME, task -> task.dependsOn(helmChartBuild));
 		TaskProvider<HelmTestTask> helmChartTest = projectTasks.register(
 				"helmChartTest",
 				HelmTestTask.class,
 				helmTestTask -> {
 					helmTestTask.dependsOn(helmChartBuild);
-					helmTestTask.copyFrom(extension);
+					helmTestTask.conventionsFrom(extension);
+					helmTestTask.getCharts().setFrom(builtCharts);
 				});
 		projectTasks.named(LifecycleBasePlugin.CHECK_TASK_NAME, task -> task.dependsOn(helmChartTest));
 
@@ -136,39 +156,61 @@ public class HelmPlugin implements Plugin<Project> {
 				"helmDeploy",
 				HelmDeployTask.class,
 				helmDeployTask -> {
-					helmDeployTask.onlyIf(element -> extension.getDeployTo() != null);
+					helmDeployTask.onlyIf(element -> deployTargetDeclared.get());
 					helmDeployTask.setTarget(extension.getDeployTo());
 					helmDeployTask.dependsOn(helmChartTest);
-					helmDeployTask.copyFrom(extension);
+					helmDeployTask.conventionsFrom(extension);
+					helmDeployTask.getCharts().setFrom(builtCharts);
 				});
+
+		// each declared chart is built into a folder of its own, tested with its tests and deployed from there
+		ConfigurableFileCollection declaredCharts = project.files();
+		extension.getCharts().all(chart -> {
+			TaskProvider<HelmBuildTask> chartBuild = projectTasks.register(
+					"helmChartBuild" + chart.getTaskNameSuffix(),
+					HelmBuildTask.class,
+					helmBuildTask -> {
+						helmBuildTask.setDescription("Builds the Helm Chart " + chart.getName());
+						helmBuildTask.dependsOn(helmRepoSync);
+						helmBuildTask.setSource(chart.getSource());
+						helmBuildTask.setExpansions(chart.getExpansions());
+						helmBuildTask.conventionsFrom(extension);
+						helmBuildTask.setOutputDirectory(new File(project.getBuildDir(), "helm/charts/" + chart.getName()));
+					});
+			helmChartBuild.configure(helmBuildTask -> helmBuildTask.dependsOn(chartBuild));
+			ConfigurableFileCollection builtChart = project
+					.files(chartBuild.map(HelmBuildTask::getOutputDirectory))
+					.builtBy(chartBuild);
+			declaredCharts.from(builtChart);
+			helmChartTest.configure(helmTestTask -> {
+				// declared charts are tested with tests of their own only
+				helmTestTask.getCharts().setFrom();
+				helmTestTask.chartTests(chart.getName(), builtChart, chart.getTests());
+			});
+			helmDeploy.configure(helmDeployTask -> helmDeployTask.getCharts().setFrom(declaredCharts));
+		});
 	}
 
-	private Action<Download> createDownloadConfigurer(Project project, HelmSpec helmSpec) {
+	private Action<Task> createDownloadConfigurer(Project project, HelmPluginExtension extension) {
 		return download -> {
-			download.src(helmSpec.getHelmDownloadUrl());
-			download.dest(getHelmDownloadFile(helmSpec));
-			download.overwrite(false);
-			// gradle requires an anonymous class for actions for UP-TO-DATE checks to work.
-			//noinspection Convert2Lambda
-			download.doFirst(new Action<Task>() {
-				@Override
-				public void execute(Task task) {
-					project.delete(helmSpec.getHelmExecutableDirectory());
-				}
-			});
+			// detached from the extension, so the actions below only capture state the configuration cache can store
+			SimpleHelmSpec downloadSpec = SimpleHelmSpec.copyOf(extension);
+			String downloadChecksum = extension.getHelmDownloadChecksum();
+			HelmInstallation installation = project.getObjects().newInstance(HelmInstallation.class);
+			File executable = new File(getHelmExecutable(downloadSpec));
+			download.setDescription("Downloads and installs helm");
+			// the executable directory is shared by all projects of all builds using the same helm
+			download.onlyIf(task -> !executable.isFile());
 			// gradle requires an anonymous class for actions for UP-TO-DATE checks to work.
 			//noinspection Convert2Lambda
-			download.doLast("extractHelm", new Action<Task>() {
+			download.doLast("installHelm", new Action<Task>() {
 				@Override
 				public void execute(Task task) {
-					project.copy(copySpec -> {
-						copySpec.from(project.provider(() -> project.tarTree(getHelmDownloadFile(helmSpec))));
-						copySpec.into(helmSpec.getHelmExecutableDirectory());
-						copySpec.eachFile(fileCopyDetails -> {
-							fileCopyDetails.setPath(fileCopyDetails.getName());
-						});
-						copySpec.setIncludeEmptyDirs(false);
-					});
+					try {
+						installation.install(downloadSpec, downloadChecksum);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
 				}
 			});
 		};
@@ -209,6 +251,18 @@ public class HelmPlugin implements Plugin<Project> {
 		return helmExecResult.output;
 	}
 
+	public static String[] helmExecSuccess(ExecOperations execOperations, HelmSpec helmSpec, Object... args) {
+		return helmExecSuccess(HelmExecutor.forking(execOperations), helmSpec, args);
+	}
+
+	public static String[] helmExecSuccess(HelmExecutor helmExecutor, HelmSpec helmSpec, Object... args) {
+		HelmExecResult helmExecResult = helmExecutor.exec(helmSpec, args);
+		if (helmExecResult.execResult.getExitValue() != 0) {
+			throw new ExecException("Unexpected failed execution:\n" + String.join("\n", helmExecResult.output));
+		}
+		return helmExecResult.output;
+	}
+
 	public static String[] helmExecFail(Project project, HelmSpec helmSpec, Object... args) {
 		HelmExecResult helmExecResult = helmExec(project, helmSpec, args);
 		if (helmExecResult.execResult.getExitValue() == 0) {
@@ -218,34 +272,46 @@ public class HelmPlugin implements Plugin<Project> {
 	}
 
 	public static HelmExecResult helmExec(Project project, HelmSpec helmSpec, Object... args) {
-		Logger logger = project.getLogger();
-		if (logger.isDebugEnabled()) {
-			String command = Arrays.stream(args)
-					.map(Object::toString)
-					.collect(Collectors.joining(" "));
-			logger.debug("Executing : helm " + command);
-		}
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		ExecResult execResult = project.exec(execSpec -> {
-			configureFromExtension(helmSpec, args).execute(execSpec);
-			execSpec.setStandardOutput(outStream);
-			execSpec.setErrorOutput(outStream);
-			execSpec.setIgnoreExitValue(true);
-		});
-		String[] lines = outStream.toString().split("\n");
-		if (logger.isDebugEnabled()) {
-			logger.debug("Result of previous command : \n" + String.join("\n", lines));
-		}
-		return new HelmExecResult(execResult, lines);
+		return HelmExecutor.forking(project).exec(helmSpec, args);
+	}
+
+	public static HelmExecResult helmExec(ExecOperations execOperations, HelmSpec helmSpec, Object... args) {
+		return HelmExecutor.forking(execOperations).exec(helmSpec, args);
+	}
+
+	public static HelmExecResult helmExecWithOutput(ExecOperations execOperations, HelmSpec helmSpec, HelmOutput helmOutput, Object... args) {
+		return HelmExecutor.forking(execOperations).execWithOutput(helmSpec, helmOutput, args);
 	}
 
 	public static class HelmExecResult {
 		public final ExecResult execResult;
+		/**
+		 * Last lines of error and standard output, standard output handed to a consumer is left out.
+		 */
 		public final String[] output;
+		/**
+		 * Last lines of standard output.
+		 */
+		public final String[] standardOutput;
+		/**
+		 * Last lines of error output.
+		 */
+		public final String[] errorOutput;
+		/**
+		 * Number of bytes helm wrote to standard and error output, {@code 0} if not known.
+		 */
+		public final long outputBytes;
+
+		public HelmExecResult(ExecResult execResult, String[] output, String[] standardOutput, String[] errorOutput) {
+			this(execResult, output, standardOutput, errorOutput, 0);
+		}
 
-		public HelmExecResult(ExecResult execResult, String[] output) {
+		public HelmExecResult(ExecResult execResult, String[] output, String[] standardOutput, String[] errorOutput, long outputBytes) {
 			this.execResult = execResult;
 			this.output = output;
+			this.standardOutput = standardOutput;
+			this.errorOutput = errorOutput;
+			this.outputBytes = outputBytes;
 		}
 
 		public boolean succeeded() {
@@ -257,6 +323,13 @@ public class HelmPlugin implements Plugin<Project> {
 		}
 	}
 
+	/**
+	 * @return the yaml parser and emitter of the calling thread
+	 */
+	public static Yaml yaml() {
+		return THREAD_YAML.get();
+	}
+
 	public static Object loadYamlSilently(File yamlFile) {
 		return loadYamlSilently(yamlFile, false);
 	}
@@ -267,7 +340,7 @@ public class HelmPlugin implements Plugin<Project> {
 
 	public static Object loadYamlSilently(File yamlFile, boolean emptyObjectInsteadOfRuntimeExceptions) {
 		try (InputStream inputStream = new FileInputStream(yamlFile)) {
-			return YAML.load(inputStream);
+			return yaml().load(inputStream);
 		} catch (IOException e) {
 			if (emptyObjectInsteadOfRuntimeExceptions) {
 				return new Object();
@@ -283,7 +356,7 @@ public class HelmPlugin implements Plugin<Project> {
 
 	public static List<Object> loadYamlsSilently(File yamlFile, boolean emptySetInsteadOfRuntimeExceptions) {
 		try (FileInputStream yaml = new FileInputStream(yamlFile);) {
-			return StreamSupport.stream(YAML.loadAll(yaml).spliterator(), false)
+			return StreamSupport.stream(yaml().loadAll(yaml).spliterator(), false)
 					.filter(Objects::nonNull)
 					.collect(Collectors.toList());
 		} catch (IOException e) {
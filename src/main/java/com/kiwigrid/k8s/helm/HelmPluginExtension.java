@@ -1,11 +1,13 @@
 package com.kiwigrid.k8s.helm;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import org.gradle.api.NamedDomainObjectContainer;
 import org.gradle.api.Project;
@@ -22,7 +24,9 @@ public class HelmPluginExtension implements HelmSpec {
 	public static final Set<String> ARCHITECTURES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(I_386,
 			AMD_64)));
 
-	private File helmExecutableDirectory; // "${project.build.directory}/helm/bin"
+	private File helmExecutableDirectory; // "${gradle.user.home}/caches/helm/<version>/<os>-<arch>"
+
+	private final File gradleUserHomeDirectory;
 
 	private File outputDirectory; // "${project.build.directory}/helm/repo"
 
@@ -34,19 +38,24 @@ public class HelmPluginExtension implements HelmSpec {
 
 	private String helmDownloadUrl;
 
+	private String helmDownloadChecksum;
+
 	private File helmHomeDirectory;
 
 	private NamedDomainObjectContainer<HelmRepository> repositories;
 
+	private NamedDomainObjectContainer<HelmChart> charts;
+
 	private HelmRepository deployTo;
 
 	private MapProperty<String, Object> expansions;
 
 	public HelmPluginExtension(Project project) {
 		repositories = project.container(HelmRepository.class, HelmRepository::new);
+		charts = project.container(HelmChart.class, name -> new HelmChart(name, project, this));
 		expansions = project.getObjects().mapProperty(String.class, Object.class);
 		expansions.convention(Collections.emptyMap());
-		helmExecutableDirectory = new File(project.getBuildDir(), "helm/bin");
+		gradleUserHomeDirectory = project.getGradle().getGradleUserHomeDir();
 		helmHomeDirectory = new File(project.getBuildDir(), "helm/home");
 		outputDirectory = new File(project.getBuildDir(), "helm/repo");
 		// detect OS
@@ -113,9 +122,19 @@ public class HelmPluginExtension implements HelmSpec {
 
 	// some feature testers
 
+	/**
+	 * Unless configured explicitly, helm is shared by all projects and builds of the gradle user home, one directory
+	 * per version and platform or per custom download URL.
+	 */
 	@Override
 	public File getHelmExecutableDirectory() {
-		return helmExecutableDirectory;
+		if (helmExecutableDirectory != null) {
+			return helmExecutableDirectory;
+		}
+		String platform = helmDownloadUrl != null
+				? "custom-" + UUID.nameUUIDFromBytes(helmDownloadUrl.getBytes(StandardCharsets.UTF_8))
+				: operatingSystem + "-" + architecture;
+		return new File(gradleUserHomeDirectory, "caches/helm/" + version + "/" + platform);
 	}
 
 	@Override
@@ -146,6 +165,26 @@ public class HelmPluginExtension implements HelmSpec {
 		return repositories;
 	}
 
+	/**
+	 * Charts of a project with more than one chart, each one is built by a task of its own. If empty the single chart
+	 * in {@code src/main/helm} is built.
+	 */
+	public NamedDomainObjectContainer<HelmChart> getCharts() {
+		return charts;
+	}
+
+	/**
+	 * SHA-256 checksum the downloaded helm archive must have. If not given, the archive is verified against the
+	 * {@code .sha256} file next to it, if there is one.
+	 */
+	public String getHelmDownloadChecksum() {
+		return helmDownloadChecksum;
+	}
+
+	public void setHelmDownloadChecksum(String helmDownloadChecksum) {
+		this.helmDownloadChecksum = helmDownloadChecksum;
+	}
+
 	public HelmRepository getDeployTo() {
 		return deployTo;
 	}
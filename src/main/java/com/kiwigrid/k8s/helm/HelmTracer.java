@@ -0,0 +1,235 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import groovy.json.JsonOutput;
+import org.gradle.api.Project;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Traces the phases of the helm tasks and every helm execution of a build, if the gradle property
+ * {@value #TRACE_FILE_PROPERTY} names a file.
+ * <p>
+ * All spans of a build share a trace, rooted in a span covering the build. When the build finishes they are appended
+ * to the file as a single line of OTLP/JSON, which an OpenTelemetry collector picks up using its
+ * {@code otlpjsonfile} receiver.
+ */
+public abstract class HelmTracer implements BuildService<HelmTracer.Parameters>, AutoCloseable {
+
+	public static final String SERVICE_NAME = "helmTracer";
+	public static final String TRACE_FILE_PROPERTY = "helmTraceFile";
+	private static final String INSTRUMENTATION_SCOPE = "com.kiwigrid.k8s.helm";
+
+	private static final Logger LOGGER = Logging.getLogger(HelmTracer.class);
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// span timestamps are derived from the monotonic clock
+	private final long startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+	private final long startNanoTime = System.nanoTime();
+	private final String traceId = randomHex(16);
+	private final Queue<Span> endedSpans = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+	private final Span buildSpan = new Span("gradle build", null);
+
+	public interface Parameters extends BuildServiceParameters {
+		/**
+		 * file the spans are appended to, tracing is disabled without one
+		 */
+		RegularFileProperty getTraceFile();
+	}
+
+	public static Provider<HelmTracer> registerIfAbsent(Project project) {
+		Project rootProject = project.getRootProject();
+		Object traceFile = project.findProperty(TRACE_FILE_PROPERTY);
+		return project.getGradle().getSharedServices().registerIfAbsent(SERVICE_NAME, HelmTracer.class, spec -> {
+			if (traceFile != null) {
+				spec.getParameters().getTraceFile().set(rootProject.file(traceFile));
+			}
+		});
+	}
+
+	/**
+	 * Starts a span, child of the span currently open in this thread, if any, otherwise of the build span. Until
+	 * closed, the span is the current one of this thread.
+	 */
+	public Span startSpan(String name) {
+		Span parent = currentSpan.get();
+		return startSpan(name, parent != null ? parent.spanId : buildSpan.spanId);
+	}
+
+	/**
+	 * Starts a span with a parent opened in another thread, e.g. by the task submitting a worker action. Until
+	 * closed, the span is the current one of this thread.
+	 */
+	public Span startSpan(String name, String parentSpanId) {
+		Span span = new Span(name, parentSpanId);
+		span.previous = currentSpan.get();
+		currentSpan.set(span);
+		return span;
+	}
+
+	private long epochNanos() {
+		return startEpochNanos + System.nanoTime() - startNanoTime;
+	}
+
+	@Override
+	public void close() {
+		if (!getParameters().getTraceFile().isPresent()) {
+			return;
+		}
+		buildSpan.end();
+		List<Object> spans = new ArrayList<>();
+		endedSpans.forEach(span -> spans.add(span.toMap()));
+
+		Map<String, Object> scope = new LinkedHashMap<>();
+		scope.put("name", INSTRUMENTATION_SCOPE);
+		Map<String, Object> scopeSpans = new LinkedHashMap<>();
+		scopeSpans.put("scope", scope);
+		scopeSpans.put("spans", spans);
+		Map<String, Object> resource = new LinkedHashMap<>();
+		resource.put("attributes", Collections.singletonList(toAttribute("service.name", "gradle")));
+		Map<String, Object> resourceSpans = new LinkedHashMap<>();
+		resourceSpans.put("resource", resource);
+		resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+		Map<String, Object> request = Collections.singletonMap("resourceSpans",
+				Collections.singletonList(resourceSpans));
+
+		File traceFile = getParameters().getTraceFile().get().getAsFile();
+		try {
+			Files.createDirectories(traceFile.getAbsoluteFile().getParentFile().toPath());
+			Files.write(traceFile.toPath(),
+					(JsonOutput.toJson(request) + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		LOGGER.info("Appended {} spans of trace {} to {}", spans.size(), traceId, traceFile);
+	}
+
+	private static Map<String, Object> toAttribute(String key, Object value) {
+		Map<String, Object> attributeValue = new LinkedHashMap<>();
+		if (value instanceof Integer || value instanceof Long) {
+			// 64 bit integers are strings in OTLP/JSON
+			attributeValue.put("intValue", value.toString());
+		} else if (value instanceof Boolean) {
+			attributeValue.put("boolValue", value);
+		} else {
+			attributeValue.put("stringValue", String.valueOf(value));
+		}
+		Map<String, Object> attribute = new LinkedHashMap<>();
+		attribute.put("key", key);
+		attribute.put("value", attributeValue);
+		return attribute;
+	}
+
+	private static String randomHex(int bytes) {
+		byte[] random = new byte[bytes];
+		RANDOM.nextBytes(random);
+		StringBuilder hex = new StringBuilder(bytes * 2);
+		for (byte b : random) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A timed operation, ended by closing it.
+	 */
+	public class Span implements AutoCloseable {
+		private static final int STATUS_ERROR = 2;
+
+		private final String spanId = randomHex(8);
+		private final String parentSpanId;
+		private final String name;
+		private final long startTimeNanos = epochNanos();
+		private final Map<String, Object> attributes = new LinkedHashMap<>();
+		private long endTimeNanos;
+		private String errorMessage;
+		private Span previous;
+
+		private Span(String name, String parentSpanId) {
+			this.name = name;
+			this.parentSpanId = parentSpanId;
+		}
+
+		public String getSpanId() {
+			return spanId;
+		}
+
+		public Span attribute(String key, Object value) {
+			attributes.put(key, value);
+			return this;
+		}
+
+		/**
+		 * Marks the operation as failed.
+		 */
+		public Span error(String message) {
+			errorMessage = message;
+			return this;
+		}
+
+		@Override
+		public void close() {
+			if (currentSpan.get() == this) {
+				if (previous != null) {
+					currentSpan.set(previous);
+				} else {
+					currentSpan.remove();
+				}
+			}
+			end();
+		}
+
+		private void end() {
+			endTimeNanos = epochNanos();
+			if (getParameters().getTraceFile().isPresent()) {
+				endedSpans.add(this);
+			}
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> span = new LinkedHashMap<>();
+			span.put("traceId", traceId);
+			span.put("spanId", spanId);
+			if (parentSpanId != null) {
+				span.put("parentSpanId", parentSpanId);
+			}
+			span.put("name", name);
+			// internal
+			span.put("kind", 1);
+			span.put("startTimeUnixNano", Long.toString(startTimeNanos));
+			span.put("endTimeUnixNano", Long.toString(endTimeNanos));
+			List<Object> spanAttributes = new ArrayList<>();
+			attributes.forEach((key, value) -> spanAttributes.add(toAttribute(key, value)));
+			span.put("attributes", spanAttributes);
+			if (errorMessage != null) {
+				Map<String, Object> status = new LinkedHashMap<>();
+				status.put("code", STATUS_ERROR);
+				status.put("message", errorMessage);
+				span.put("status", status);
+			}
+			return span;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits UTF-8 output into lines as it is written, only the line currently written is buffered.
+ */
+class LineOutputStream extends OutputStream {
+
+	private final Consumer<String> consumer;
+	private byte[] line = new byte[256];
+	private int length;
+	private long byteCount;
+	private boolean closed;
+
+	LineOutputStream(Consumer<String> consumer) {
+		this.consumer = consumer;
+	}
+
+	@Override
+	public void write(int b) {
+		byteCount++;
+		if (b == '\n') {
+			emit();
+			return;
+		}
+		if (length == line.length) {
+			line = Arrays.copyOf(line, line.length * 2);
+		}
+		line[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			write(bytes[i]);
+		}
+	}
+
+	long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Hands out a trailing line not terminated by a line break.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			if (length > 0) {
+				emit();
+			}
+		}
+	}
+
+	private void emit() {
+		int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+		consumer.accept(new String(line, 0, end, StandardCharsets.UTF_8));
+		length = 0;
+	}
+}
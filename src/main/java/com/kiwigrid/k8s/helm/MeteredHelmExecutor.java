@@ -0,0 +1,61 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records subcommand, chart, duration, exit value and output size of every execution in the {@link HelmMetrics}.
+ */
+class MeteredHelmExecutor implements HelmExecutor {
+
+	private final HelmExecutor delegate;
+	private final HelmMetrics metrics;
+	private final String taskPath;
+
+	MeteredHelmExecutor(HelmExecutor delegate, HelmMetrics metrics, String taskPath) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+		this.taskPath = taskPath;
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult exec(HelmSpec helmSpec, Object... args) {
+		return execWithOutput(helmSpec, new HelmOutput(), args);
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult execWithOutput(HelmSpec helmSpec, HelmOutput helmOutput, Object... args) {
+		long start = System.currentTimeMillis();
+		HelmPlugin.HelmExecResult execResult = delegate.execWithOutput(helmSpec, helmOutput, args);
+		metrics.recordExecution(new HelmMetrics.Execution(subcommand(args),
+				chart(args),
+				taskPath,
+				System.currentTimeMillis() - start,
+				execResult.execResult.getExitValue(),
+				execResult.outputBytes));
+		return execResult;
+	}
+
+	// the leading arguments up to the first option or path, e.g. "dependency build"
+	static String subcommand(Object... args) {
+		List<String> subcommand = new ArrayList<>();
+		for (Object arg : args) {
+			String value = arg.toString();
+			if (value.startsWith("-") || value.contains("/") || value.contains(File.separator)) {
+				break;
+			}
+			subcommand.add(value);
+		}
+		return subcommand.isEmpty() ? "helm" : String.join(" ", subcommand);
+	}
+
+	// helm commands working on a chart take the chart folder as last argument
+	static String chart(Object... args) {
+		if (args.length == 0) {
+			return null;
+		}
+		File chartFolder = new File(args[args.length - 1].toString());
+		return chartFolder.isAbsolute() && new File(chartFolder, "Chart.yaml").isFile() ? chartFolder.getName() : null;
+	}
+}
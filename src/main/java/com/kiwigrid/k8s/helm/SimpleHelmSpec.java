@@ -0,0 +1,83 @@
+package com.kiwigrid.k8s.helm;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * Detached, serializable copy of a {@link HelmSpec}, used to hand the helm setup over to worker actions.
+ */
+public class SimpleHelmSpec implements HelmSpec, Serializable {
+
+	private File helmExecutableDirectory;
+	private File outputDirectory;
+	private String version;
+	private String architecture;
+	private String helmDownloadUrl;
+	private File helmHomeDirectory;
+
+	public static SimpleHelmSpec copyOf(HelmSpec other) {
+		SimpleHelmSpec helmSpec = new SimpleHelmSpec();
+		helmSpec.copyFrom(other);
+		return helmSpec;
+	}
+
+	@Override
+	public void setHelmExecutableDirectory(File helmExecutableDirectory) {
+		this.helmExecutableDirectory = helmExecutableDirectory;
+	}
+
+	@Override
+	public File getHelmExecutableDirectory() {
+		return helmExecutableDirectory;
+	}
+
+	@Override
+	public void setOutputDirectory(File outputDirectory) {
+		this.outputDirectory = outputDirectory;
+	}
+
+	@Override
+	public File getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	@Override
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	@Override
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	public void setArchitecture(String architecture) {
+		this.architecture = architecture;
+	}
+
+	@Override
+	public String getArchitecture() {
+		return architecture;
+	}
+
+	@Override
+	public void setHelmDownloadUrl(String helmDownloadUrl) {
+		this.helmDownloadUrl = helmDownloadUrl;
+	}
+
+	@Override
+	public String getHelmDownloadUrl() {
+		return helmDownloadUrl;
+	}
+
+	@Override
+	public void setHelmHomeDirectory(File helmHomeDirectory) {
+		this.helmHomeDirectory = helmHomeDirectory;
+	}
+
+	@Override
+	public File getHelmHomeDirectory() {
+		return helmHomeDirectory;
+	}
+}
@@ -0,0 +1,38 @@
+package com.kiwigrid.k8s.helm;
+
+/**
+ * Runs every execution in a span of its own, child of the span currently open in the calling thread.
+ */
+class TracedHelmExecutor implements HelmExecutor {
+
+	private final HelmExecutor delegate;
+	private final HelmTracer tracer;
+
+	TracedHelmExecutor(HelmExecutor delegate, HelmTracer tracer) {
+		this.delegate = delegate;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult exec(HelmSpec helmSpec, Object... args) {
+		return execWithOutput(helmSpec, new HelmOutput(), args);
+	}
+
+	@Override
+	public HelmPlugin.HelmExecResult execWithOutput(HelmSpec helmSpec, HelmOutput helmOutput, Object... args) {
+		try (HelmTracer.Span span = tracer.startSpan("helm " + MeteredHelmExecutor.subcommand(args))) {
+			String chart = MeteredHelmExecutor.chart(args);
+			if (chart != null) {
+				span.attribute("helm.chart", chart);
+			}
+			span.attribute("helm.version", helmSpec.getVersion());
+			HelmPlugin.HelmExecResult execResult = delegate.execWithOutput(helmSpec, helmOutput, args);
+			span.attribute("process.exit.code", execResult.execResult.getExitValue())
+					.attribute("helm.output.bytes", execResult.outputBytes);
+			if (execResult.failed()) {
+				span.error("helm exited with " + execResult.execResult.getExitValue());
+			}
+			return execResult;
+		}
+	}
+}
@@ -1,89 +1,179 @@
 package com.kiwigrid.k8s.helm.tasks;
 
 import java.io.File;
+import java.util.concurrent.Callable;
 
+import com.kiwigrid.k8s.helm.HelmExecutor;
+import com.kiwigrid.k8s.helm.HelmMetrics;
 import com.kiwigrid.k8s.helm.HelmSpec;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import javax.inject.Inject;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.InputDirectory;
 import org.gradle.api.tasks.Internal;
+import org.gradle.process.ExecOperations;
+
+/**
+ * Base of all helm tasks. The {@link HelmSpec} settings are lazy properties and task actions only use injected
+ * services, so none of the tasks accesses the project at execution time.
+ */
+public abstract class AbstractHelmTask extends DefaultTask implements HelmSpec {
+
+	private final DirectoryProperty helmExecutableDirectory;
+	private final DirectoryProperty outputDirectory;
+	private final Property<String> version;
+	private final Property<String> architecture;
+	private final Property<String> helmDownloadUrl;
+	private final DirectoryProperty helmHomeDirectory;
+	private final Property<HelmMetrics> metrics;
+	private final Property<HelmTracer> tracer;
+
+	public AbstractHelmTask() {
+		ObjectFactory objectFactory = getProject().getObjects();
+		helmExecutableDirectory = objectFactory.directoryProperty();
+		outputDirectory = objectFactory.directoryProperty();
+		version = objectFactory.property(String.class);
+		architecture = objectFactory.property(String.class);
+		helmDownloadUrl = objectFactory.property(String.class);
+		helmHomeDirectory = objectFactory.directoryProperty();
+		// declared as used, so gradle keeps the services open as long as tasks use them
+		Provider<HelmMetrics> metricsService = HelmMetrics.registerIfAbsent(getProject());
+		metrics = objectFactory.property(HelmMetrics.class);
+		metrics.convention(metricsService);
+		usesService(metricsService);
+		Provider<HelmTracer> tracerService = HelmTracer.registerIfAbsent(getProject());
+		tracer = objectFactory.property(HelmTracer.class);
+		tracer.convention(tracerService);
+		usesService(tracerService);
+	}
+
+	@Inject
+	protected abstract ExecOperations getExecOperations();
 
-public class AbstractHelmTask extends DefaultTask implements HelmSpec {
+	@Inject
+	protected abstract FileSystemOperations getFileSystemOperations();
 
-	private File helmExecutableDirectory;
-	private File outputDirectory;
-	private String version;
-	private String architecture;
-	private String helmDownloadUrl;
-	private File helmHomeDirectory;
+	/**
+	 * @return executor of the helm commands of this task, recording them in the metrics and the trace of the build
+	 */
+	protected HelmExecutor helmExecutor() {
+		return HelmExecutor.forking(getExecOperations()).meteredBy(metrics.get(), getPath()).tracedBy(tracer.get());
+	}
+
+	/**
+	 * Starts a span of the trace of the build, to be closed once the traced operation finished.
+	 */
+	protected HelmTracer.Span startSpan(String name) {
+		return tracer.get().startSpan(name).attribute("gradle.task.path", getPath());
+	}
+
+	/**
+	 * Like {@link #copyFrom(HelmSpec)}, but the settings are only read from the other spec once they are needed, so
+	 * changes made to it afterwards are still honored. Settings of the task itself take precedence.
+	 */
+	public void conventionsFrom(HelmSpec other) {
+		helmExecutableDirectory.convention(helmExecutableDirectory.fileProvider(provider(other::getHelmExecutableDirectory)));
+		outputDirectory.convention(outputDirectory.fileProvider(provider(other::getOutputDirectory)));
+		version.convention(provider(other::getVersion));
+		architecture.convention(provider(other::getArchitecture));
+		helmDownloadUrl.convention(provider(other::getHelmDownloadUrl));
+		helmHomeDirectory.convention(helmHomeDirectory.fileProvider(provider(other::getHelmHomeDirectory)));
+	}
+
+	private <T> Provider<T> provider(Callable<T> value) {
+		return getProject().provider(value);
+	}
 
 	@Override
 	public void setHelmExecutableDirectory(File helmExecutableDirectory) {
-		this.helmExecutableDirectory = helmExecutableDirectory;
+		this.helmExecutableDirectory.set(helmExecutableDirectory);
 	}
 
-	@InputDirectory
+	// the executable is identified by version and download url, its location differs from machine to machine
+	@Internal
 	@Override
 	public File getHelmExecutableDirectory() {
-		return helmExecutableDirectory;
+		return helmExecutableDirectory.getAsFile().getOrNull();
 	}
 
 	@Override
 	public void setOutputDirectory(File outputDirectory) {
-		this.outputDirectory = outputDirectory;
+		this.outputDirectory.set(outputDirectory);
 	}
 
 	@Internal
 	@Override
 	public File getOutputDirectory() {
-		return outputDirectory;
+		return outputDirectory.getAsFile().getOrNull();
 	}
 
 	@Override
 	public void setVersion(String version) {
-		this.version = version;
+		this.version.set(version);
 	}
 
 	@Input
 	@Override
 	public String getVersion() {
-		return version;
+		return version.getOrNull();
 	}
 
 	@Override
 	public void setArchitecture(String architecture) {
-		this.architecture = architecture;
+		this.architecture.set(architecture);
 	}
 
 	@Input
 	@Override
 	public String getArchitecture() {
-		return architecture;
+		return architecture.getOrNull();
 	}
 
 	@Override
 	public void setHelmDownloadUrl(String helmDownloadUrl) {
-		this.helmDownloadUrl = helmDownloadUrl;
+		this.helmDownloadUrl.set(helmDownloadUrl);
 	}
 
 	@Input
 	@Override
 	public String getHelmDownloadUrl() {
-		return helmDownloadUrl;
+		return helmDownloadUrl.getOrNull();
 	}
 
 	@Override
 	public void setHelmHomeDirectory(File helmHomeDirectory) {
-		this.helmHomeDirectory = helmHomeDirectory;
+		this.helmHomeDirectory.set(helmHomeDirectory);
 	}
 
 	@Internal
 	@Override
 	public File getHelmHomeDirectory() {
-		return helmHomeDirectory;
+		return helmHomeDirectory.getAsFile().getOrNull();
 	}
 
-	@Input
+	/**
+	 * Metrics of the helm executions of the build.
+	 */
+	@Internal
+	public Property<HelmMetrics> getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Tracer of the helm tasks of the build.
+	 */
+	@Internal
+	public Property<HelmTracer> getTracer() {
+		return tracer;
+	}
+
+	// the location differs between machines and checkouts, tasks depending on the content declare it themselves
+	@Internal
 	public String getHelmHomeDirectoryPath() {
 		return getHelmHomeDirectory().getAbsolutePath();
 	}
@@ -1,34 +1,65 @@
 package com.kiwigrid.k8s.helm.tasks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.AbstractMap;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import com.kiwigrid.k8s.helm.Digests;
 import com.kiwigrid.k8s.helm.HelmPlugin;
+import com.kiwigrid.k8s.helm.HelmTracer;
 import javax.inject.Inject;
-import org.apache.tools.ant.filters.ReplaceTokens;
-import org.gradle.api.Project;
+import org.gradle.api.GradleException;
 import org.gradle.api.file.Directory;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.plugins.BasePlugin;
 import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
-public class HelmBuildTask extends AbstractHelmTask {
+@CacheableTask
+public abstract class HelmBuildTask extends AbstractHelmTask {
+
+	private static final String CHARTS_FOLDER = "charts";
+	// written by 'helm dependency build' unless the chart brings its own
+	private static final List<String> LOCK_FILES = Arrays.asList("Chart.lock", "requirements.lock");
+	private static final String DEPENDENCIES_STATE = "dependencies";
+	private static final String CONTENT_STATE = "content";
 
 	private DirectoryProperty source;
 
+	private final File stateFile;
+
+	private final Property<HelmDependencyCache> dependencyCache;
+
 	private final MapProperty<String, Object> expansions;
 	private final Logger logger;
 
@@ -40,6 +71,11 @@ public class HelmBuildTask extends AbstractHelmTask {
 		setGroup(BasePlugin.BUILD_GROUP);
 		setDescription("Builds a Helm Chart");
 		logger = getLogger();
+		stateFile = new File(getProject().getBuildDir(), "helm/state/" + getName() + ".properties");
+		dependencyCache = objectFactory.property(HelmDependencyCache.class);
+		Provider<HelmDependencyCache> dependencyCacheService = HelmDependencyCache.registerIfAbsent(getProject());
+		dependencyCache.convention(dependencyCacheService);
+		usesService(dependencyCacheService);
 	}
 
 	private Directory getDefaultSourceDir() {
@@ -48,16 +84,155 @@ public class HelmBuildTask extends AbstractHelmTask {
 
 	@TaskAction
 	public void helmBuild() throws IOException {
-		File temporaryDir = renderExpansions();
-		logger.lifecycle("Rendered helm chart with expansions into {}", temporaryDir);
-		String chartName = readChartName(temporaryDir);
+		try (HelmTracer.Span ignored = startSpan("helm chart build")) {
+			buildChart();
+		}
+	}
+
+	// gradle keeps the outputs of non-incremental tasks, the fingerprints of the last build decide what is redone
+	private void buildChart() throws IOException {
+		Properties state = loadState();
+
+		Map<String, String> tokens = flattenMap(expansions.get());
+		tokens.forEach((k, v) -> logger.info("Discovered token: {} = {}", k, v));
+		HelmChartRenderer renderer = new HelmChartRenderer(source.get().getAsFile(), tokens);
+		Map<String, Object> chart = readChart(renderer);
+		String chartName = (String) chart.get("name");
 		logger.lifecycle("Read chart name to be {}", chartName);
 		File chartFolder = new File(getOutputDirectory(), chartName);
-		cleanCopyChart(temporaryDir, chartFolder);
-		logger.lifecycle("Created chart in {}, running dependency build for {}", chartFolder);
-		helmDependencyBuild(chartFolder);
-		logger.lifecycle("Running helm package for {}", chartFolder);
-		helmPackage(chartFolder);
+
+		boolean hasDependencies = chart.get("dependencies") != null || renderer.contains("requirements.yaml");
+		String dependencyDigest = dependencyDigest(renderer, chart);
+		boolean reuseDependencies = dependencyDigest.equals(state.getProperty(DEPENDENCIES_STATE))
+				&& new File(chartFolder, CHARTS_FOLDER).isDirectory();
+		// dependencies built before are kept along with their lock if unchanged, everything else follows the source
+		HelmChartRenderer.Result rendered;
+		try (HelmTracer.Span span = startSpan("render").attribute("helm.chart", chartName)) {
+			rendered = renderer.renderInto(chartFolder, path -> reuseDependencies
+					&& (path.startsWith(CHARTS_FOLDER + "/") || LOCK_FILES.contains(path)));
+			span.attribute("files.written", rendered.written).attribute("files.deleted", rendered.deleted);
+		}
+		logger.lifecycle("Rendered helm chart with expansions into {}: {} files written, {} unchanged, {} deleted",
+				chartFolder,
+				rendered.written,
+				rendered.unchanged,
+				rendered.deleted);
+		try (HelmTracer.Span ignored = startSpan("dependencies").attribute("helm.chart", chartName)) {
+			if (!hasDependencies) {
+				logger.lifecycle("Created chart in {}, no dependencies to build", chartFolder);
+			} else if (reuseDependencies) {
+				logger.lifecycle("Created chart in {}, dependencies unchanged, reusing {}",
+						chartFolder,
+						new File(chartFolder, CHARTS_FOLDER));
+			} else {
+				state.remove(DEPENDENCIES_STATE);
+				List<HelmDependencyCache.LockedDependency> lockedDependencies = readLockedDependencies(chartFolder, chart);
+				File chartsFolder = new File(chartFolder, CHARTS_FOLDER);
+				boolean restored = dependencyCache.isPresent() && !lockedDependencies.isEmpty()
+						&& dependencyCache.get().restore(lockedDependencies, chartsFolder);
+				if (dependencyCache.isPresent() && !lockedDependencies.isEmpty()) {
+					getMetrics().get().recordCacheAccess(HelmDependencyCache.SERVICE_NAME, restored);
+				}
+				if (restored) {
+					logger.lifecycle("Created chart in {}, restored {} locked dependencies from cache",
+							chartFolder,
+							lockedDependencies.size());
+					state.setProperty(DEPENDENCIES_STATE, dependencyDigest);
+				} else {
+					logger.lifecycle("Created chart in {}, running dependency build for {}", chartFolder, chartName);
+					helmDependencyBuild(chartFolder);
+					state.setProperty(DEPENDENCIES_STATE, dependencyDigest);
+					if (dependencyCache.isPresent()) {
+						dependencyCache.get().store(lockedDependencies, chartsFolder);
+					}
+				}
+			}
+		}
+
+		String contentDigest = Digests.sha256().addDirectory(chartFolder).hex();
+		File packageFile = new File(getOutputDirectory(), chartName + "-" + chart.get("version") + ".tgz");
+		if (contentDigest.equals(state.getProperty(CONTENT_STATE)) && packageFile.isFile()) {
+			logger.lifecycle("Chart content unchanged, keeping {}", packageFile);
+		} else {
+			helmPackage(chartFolder);
+			state.setProperty(CONTENT_STATE, contentDigest);
+		}
+		saveState(state);
+	}
+
+	// fingerprint of everything 'helm dependency build' depends on, the chart version is deliberately left out
+	private static String dependencyDigest(HelmChartRenderer renderer, Map<String, Object> chart) throws IOException {
+		Digests digests = Digests.sha256()
+				.add(HelmPlugin.yaml().dump(chart.get("dependencies")))
+				.addContent(renderer.render("Chart.lock"))
+				.addContent(renderer.render("requirements.yaml"))
+				.addContent(renderer.render("requirements.lock"));
+		for (String path : renderer.getSourceFiles().keySet()) {
+			if (path.startsWith(CHARTS_FOLDER + "/")) {
+				digests.add(path).addContent(renderer.render(path));
+			}
+		}
+		return digests.hex();
+	}
+
+	/**
+	 * @return the locked dependencies if the lock is complete and all of them are fetched by URL, empty otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<HelmDependencyCache.LockedDependency> readLockedDependencies(File chartFolder, Map<String, Object> chart) throws IOException {
+		File lockFile = new File(chartFolder, "Chart.lock");
+		List<Map<String, Object>> declared = (List<Map<String, Object>>) chart.get("dependencies");
+		if (!lockFile.isFile()) {
+			lockFile = new File(chartFolder, "requirements.lock");
+			declared = Optional.ofNullable(readYaml(new File(chartFolder, "requirements.yaml")))
+					.map(requirements -> (List<Map<String, Object>>) requirements.get("dependencies"))
+					.orElse(null);
+		}
+		Map<String, Object> lock = readYaml(lockFile);
+		if (lock == null || declared == null || lock.get("dependencies") == null) {
+			return Collections.emptyList();
+		}
+		List<HelmDependencyCache.LockedDependency> locked = ((List<Map<String, Object>>) lock.get("dependencies"))
+				.stream()
+				.map(dependency -> new HelmDependencyCache.LockedDependency(
+						String.valueOf(dependency.get("name")),
+						String.valueOf(dependency.get("version")),
+						(String) dependency.get("repository")))
+				.collect(Collectors.toList());
+		// a lock out of sync with the declared dependencies is left to helm to complain about
+		Set<String> lockedNames = locked.stream().map(dependency -> dependency.name).collect(Collectors.toSet());
+		boolean inSync = declared.size() == locked.size()
+				&& declared.stream().allMatch(dependency -> lockedNames.contains(String.valueOf(dependency.get("name"))));
+		if (!inSync || !locked.stream().allMatch(HelmDependencyCache.LockedDependency::isCacheable)) {
+			return Collections.emptyList();
+		}
+		return locked;
+	}
+
+	private static Map<String, Object> readYaml(File yamlFile) throws IOException {
+		if (!yamlFile.isFile()) {
+			return null;
+		}
+		try (FileInputStream inputStream = new FileInputStream(yamlFile)) {
+			return HelmPlugin.yaml().load(inputStream);
+		}
+	}
+
+	private Properties loadState() throws IOException {
+		Properties state = new Properties();
+		if (stateFile.isFile()) {
+			try (InputStream inputStream = new FileInputStream(stateFile)) {
+				state.load(inputStream);
+			}
+		}
+		return state;
+	}
+
+	private void saveState(Properties state) throws IOException {
+		stateFile.getParentFile().mkdirs();
+		try (OutputStream outputStream = new FileOutputStream(stateFile)) {
+			state.store(outputStream, "helm build state of task " + getPath());
+		}
 	}
 
 	// for this task output dir is an output
@@ -67,86 +242,96 @@ public class HelmBuildTask extends AbstractHelmTask {
 		return super.getOutputDirectory();
 	}
 
-	// for this task helm home is an input
-	@InputDirectory
-	@Override
-	public File getHelmHomeDirectory() {
-		File helmHomeDirectory = super.getHelmHomeDirectory();
-		// an input directory needs to exist otherwise gradle fails with an error.
-		if (!helmHomeDirectory.exists()) {
-			helmHomeDirectory.mkdirs();
-		}
-		return helmHomeDirectory;
-	}
-
-	private void helmPackage(File chartFolder) {
-		// package
-		boolean is30OrNewer = HelmPlugin.isVersion3OrNewer(getVersion());
-
-		Object [] arguments;
-		if(is30OrNewer) {
-			arguments = new Object[]{
-					"package",
-					"--destination",
-					getOutputDirectory().getAbsolutePath(),
-					chartFolder.getAbsolutePath()
-			};
-		} else {
-			arguments = new Object[]{
-					"package",
-					"--save=false",
-					"--destination",
-					getOutputDirectory().getAbsolutePath(),
-					chartFolder.getAbsolutePath()
-			};
+	/**
+	 * Names and URLs of the repositories of the helm home the dependencies of the chart refer to, the part of the helm
+	 * home building the chart depends on.
+	 */
+	@Input
+	public Map<String, String> getDependencyRepositories() {
+		try {
+			HelmChartRenderer renderer = new HelmChartRenderer(source.get().getAsFile(), flattenMap(expansions.get()));
+			Set<String> references = declaredDependencies(renderer, readChart(renderer))
+					.stream()
+					.map(dependency -> dependency.get("repository"))
+					.filter(Objects::nonNull)
+					.map(repository -> stripTrailingSlash(repository.toString()))
+					.collect(Collectors.toSet());
+			Map<String, String> repositories = new TreeMap<>();
+			if (references.isEmpty()) {
+				return repositories;
+			}
+			HelmRepositoriesFile repositoriesFile = HelmRepositoriesFile.load(HelmRepositoriesFile.locate(this));
+			for (String name : repositoriesFile.getNames()) {
+				String url = stripTrailingSlash(String.valueOf(repositoriesFile.get(name).get("url")));
+				// helm refers to repositories by '@name', 'alias:name' or their URL
+				if (references.contains("@" + name) || references.contains("alias:" + name) || references.contains(url)) {
+					repositories.put(name, url);
+				}
+			}
+			return repositories;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> declaredDependencies(HelmChartRenderer renderer, Map<String, Object> chart) throws IOException {
+		List<Map<String, Object>> dependencies = new ArrayList<>();
+		Optional.ofNullable((List<Map<String, Object>>) chart.get("dependencies")).ifPresent(dependencies::addAll);
+		byte[] requirements = renderer.render("requirements.yaml");
+		if (requirements != null) {
+			Optional.ofNullable((Map<String, Object>) HelmPlugin.yaml().load(new ByteArrayInputStream(requirements)))
+					.map(content -> (List<Map<String, Object>>) content.get("dependencies"))
+					.ifPresent(dependencies::addAll);
 		}
+		return dependencies;
+	}
 
-		HelmPlugin.helmExecSuccess(getProject(), this, arguments);
-		getLogger().lifecycle("packaged chart to : " + getOutputDirectory().getAbsolutePath());
+	private static String stripTrailingSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	private void helmPackage(File chartFolder) throws IOException {
+		long start = System.currentTimeMillis();
+		HelmChartPackager.Result result;
+		try (HelmTracer.Span span = startSpan("package").attribute("helm.chart", chartFolder.getName())) {
+			result = HelmChartPackager.pack(chartFolder, getOutputDirectory());
+			span.attribute("archive.bytes", result.bytes);
+		}
+		logger.lifecycle("Packaged {} files of chart to {} ({} bytes) in {} ms",
+				result.entries,
+				result.archive,
+				result.bytes,
+				System.currentTimeMillis() - start);
 	}
 
 	private void helmDependencyBuild(File chartFolder) {
-		// build deps
-		Project project = getProject();
-		HelmPlugin.helmExec(
-				project,
+		// a chart missing dependencies must not be packaged
+		HelmPlugin.helmExecSuccess(helmExecutor(),
 				this,
 				"dependency",
 				"build",
 				chartFolder.getAbsolutePath());
 	}
 
-	private File renderExpansions() {
-		File destination = getTemporaryDir();
-		// expand into tmpDir
-		Project project = getProject();
-		project.copy(copySpec -> {
-			copySpec.from(source);
-			copySpec.into(destination);
-
-			Map<String, String> tokens = flattenMap(expansions.get());
-			tokens.forEach((k, v) -> project.getLogger().info("Discovered token: {} = {}", k, v));
-			Map<String, Object> props = new LinkedHashMap<>();
-			props.put("tokens", tokens);
-			props.put("beginToken", "${");
-			props.put("endToken", "}");
-			copySpec.filter(props, ReplaceTokens.class);
-		});
-		return destination;
-	}
-
-	private void cleanCopyChart(File from, File to) {
-		Project project = getProject();
-		// start anew
-		project.delete(to);
-		// put in final dir
-		project.copy(copySpec -> {
-			copySpec.from(from);
-			copySpec.into(to);
-		});
+	/**
+	 * Cache of dependency archives shared across projects, caching is disabled if this property has no value.
+	 */
+	@Internal
+	public Property<HelmDependencyCache> getDependencyCache() {
+		return dependencyCache;
+	}
+
+	/**
+	 * Fingerprints of the last build, which decide whether dependencies are built and the chart is packaged again.
+	 */
+	@OutputFile
+	public File getStateFile() {
+		return stateFile;
 	}
 
 	@InputDirectory
+	@PathSensitive(PathSensitivity.RELATIVE)
 	public DirectoryProperty getSource() {
 		return source;
 	}
@@ -201,11 +386,12 @@ public class HelmBuildTask extends AbstractHelmTask {
 				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 	}
 
-	private static String readChartName(File chartDir) throws IOException {
-		try (FileInputStream inputStream = new FileInputStream(new File(chartDir, "Chart.yaml"))) {
-			Map<String, Object> contents = HelmPlugin.YAML.load(inputStream);
-			return (String) contents.get("name");
+	private static Map<String, Object> readChart(HelmChartRenderer renderer) throws IOException {
+		byte[] chart = renderer.render("Chart.yaml");
+		if (chart == null) {
+			throw new GradleException("No Chart.yaml found in chart source");
 		}
+		return HelmPlugin.yaml().load(new ByteArrayInputStream(chart));
 	}
 
 }
@@ -0,0 +1,228 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.tar.TarOutputStream;
+import org.gradle.api.GradleException;
+
+/**
+ * Packages a chart folder like {@code helm package} does, without forking helm.
+ * <p>
+ * The archives are byte for byte the same for the same chart content, no matter where or when they are built:
+ * entries are sorted by path, there are no directory entries and timestamps, owners and permissions are constant.
+ * The gzip header written by the JDK carries neither a timestamp nor a file name.
+ */
+class HelmChartPackager {
+
+	private static final int FILE_MODE = 0100644;
+	private static final int EXECUTABLE_MODE = 0100755;
+	// 1980-01-01T00:00:00Z, the earliest timestamp every archive tool can represent
+	private static final long MODIFICATION_TIME = 315532800000L;
+	// versions helm accepts, a 'v' prefix as well as missing minor and patch versions are tolerated
+	private static final Pattern VERSION = Pattern.compile(
+			"v?\\d+(\\.\\d+){0,2}(-[0-9A-Za-z.-]+)?(\\+[0-9A-Za-z.-]+)?");
+	// an archive or the Chart.yaml of a folder directly in charts/
+	private static final Pattern SUB_CHART = Pattern.compile("charts/([^/]+)(/Chart\\.yaml)?");
+	private static final Pattern ARCHIVED_CHART_FILE = Pattern.compile("[^/]+/Chart\\.yaml");
+
+	private HelmChartPackager() {
+	}
+
+	/**
+	 * @return the archive {@code <name>-<version>.tgz} written to the destination folder
+	 */
+	static Result pack(File chartFolder, File destinationFolder) throws IOException {
+		Map<String, Object> chart = readChart(chartFolder);
+		String name = (String) chart.get("name");
+		String version = String.valueOf(chart.get("version"));
+		File archive = new File(destinationFolder, name + "-" + version + ".tgz");
+
+		Map<String, File> files = new TreeMap<>();
+		collectFiles(chartFolder, "", HelmIgnore.load(chartFolder), files);
+		checkDependencies(name, declaredDependencies(chart, files), files);
+		Files.createDirectories(destinationFolder.toPath());
+		// the archive may be read meanwhile, e.g. by a deployment of another project, so write aside and move
+		File temporary = File.createTempFile(archive.getName(), ".tmp", destinationFolder);
+		CountingOutputStream outputStream = new CountingOutputStream(new FileOutputStream(temporary));
+		try (Writer writer = new Writer(outputStream)) {
+			for (Map.Entry<String, File> file : files.entrySet()) {
+				try (InputStream content = new FileInputStream(file.getValue())) {
+					writer.add(name + "/" + file.getKey(), file.getValue().canExecute(), file.getValue().length(), content);
+				}
+			}
+		}
+		Files.move(temporary.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return new Result(archive, files.size(), outputStream.getByteCount());
+	}
+
+	private static Map<String, Object> readChart(File chartFolder) throws IOException {
+		File chartFile = new File(chartFolder, "Chart.yaml");
+		if (!chartFile.isFile()) {
+			throw new GradleException("No Chart.yaml found in " + chartFolder);
+		}
+		Map<String, Object> chart;
+		try (InputStream inputStream = new FileInputStream(chartFile)) {
+			chart = HelmPlugin.yaml().load(inputStream);
+		}
+		if (chart == null || !(chart.get("name") instanceof String) || ((String) chart.get("name")).isEmpty()) {
+			throw new GradleException("Chart.yaml of " + chartFolder + " does not declare a name");
+		}
+		if (chart.get("version") == null || !VERSION.matcher(String.valueOf(chart.get("version"))).matches()) {
+			throw new GradleException("Chart.yaml of "
+					+ chartFolder
+					+ " does not declare a semantic version, found: "
+					+ chart.get("version"));
+		}
+		return chart;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> declaredDependencies(Map<String, Object> chart, Map<String, File> files) throws IOException {
+		List<Map<String, Object>> dependencies = new ArrayList<>();
+		if (chart.get("dependencies") instanceof List) {
+			dependencies.addAll((List<Map<String, Object>>) chart.get("dependencies"));
+		}
+		File requirementsFile = files.get("requirements.yaml");
+		if (requirementsFile != null) {
+			Map<String, Object> requirements;
+			try (InputStream inputStream = new FileInputStream(requirementsFile)) {
+				requirements = HelmPlugin.yaml().load(inputStream);
+			}
+			if (requirements != null && requirements.get("dependencies") instanceof List) {
+				dependencies.addAll((List<Map<String, Object>>) requirements.get("dependencies"));
+			}
+		}
+		return dependencies.stream().map(dependency -> (String) dependency.get("name")).collect(Collectors.toList());
+	}
+
+	/**
+	 * Refuses to package a chart missing a declared dependency in {@code charts/}, like {@code helm package} does.
+	 * Dependencies are matched by the name in the {@code Chart.yaml} of the sub chart folders and archives.
+	 */
+	private static void checkDependencies(String name, List<String> declared, Map<String, File> files) throws IOException {
+		if (declared.isEmpty()) {
+			return;
+		}
+		Set<String> present = new HashSet<>();
+		for (Map.Entry<String, File> file : files.entrySet()) {
+			Matcher matcher = SUB_CHART.matcher(file.getKey());
+			if (!matcher.matches()) {
+				continue;
+			}
+			if (matcher.group(2) != null) {
+				try (InputStream inputStream = new FileInputStream(file.getValue())) {
+					present.add(chartName(HelmPlugin.yaml().load(inputStream)));
+				}
+			} else if (matcher.group(1).endsWith(".tgz")) {
+				present.add(archivedChartName(file.getValue()));
+			}
+		}
+		List<String> missing = declared.stream().filter(dependency -> !present.contains(dependency)).collect(Collectors.toList());
+		if (!missing.isEmpty()) {
+			throw new GradleException("Chart " + name + " misses the dependencies " + missing
+					+ " in charts/, run 'helm dependency build' first");
+		}
+	}
+
+	private static String archivedChartName(File archive) throws IOException {
+		try (TarInputStream tarInputStream = new TarInputStream(new GZIPInputStream(new FileInputStream(archive)))) {
+			TarEntry entry;
+			while ((entry = tarInputStream.getNextEntry()) != null) {
+				if (ARCHIVED_CHART_FILE.matcher(entry.getName()).matches()) {
+					return chartName(HelmPlugin.yaml().load(tarInputStream));
+				}
+			}
+		}
+		throw new GradleException("No Chart.yaml found in " + archive);
+	}
+
+	private static String chartName(Object chart) {
+		return chart instanceof Map ? String.valueOf(((Map<?, ?>) chart).get("name")) : null;
+	}
+
+	private static void collectFiles(File folder, String pathPrefix, HelmIgnore helmIgnore, Map<String, File> files) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String path = pathPrefix + child.getName();
+			boolean directory = child.isDirectory();
+			if (helmIgnore.isIgnored(path, directory)) {
+				continue;
+			}
+			if (directory) {
+				collectFiles(child, path + "/", helmIgnore, files);
+			} else {
+				files.put(path, child);
+			}
+		}
+	}
+
+	static class Result {
+		final File archive;
+		final int entries;
+		final long bytes;
+
+		Result(File archive, int entries, long bytes) {
+			this.archive = archive;
+			this.entries = entries;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Writes a gzipped tar, entries need to be added in the order of their paths.
+	 */
+	private static class Writer implements Closeable {
+
+		private final TarOutputStream tarOutputStream;
+
+		Writer(OutputStream outputStream) throws IOException {
+			tarOutputStream = new TarOutputStream(new GZIPOutputStream(outputStream), "UTF-8");
+			tarOutputStream.setLongFileMode(TarOutputStream.LONGFILE_POSIX);
+			tarOutputStream.setBigNumberMode(TarOutputStream.BIGNUMBER_POSIX);
+		}
+
+		void add(String path, boolean executable, long size, InputStream content) throws IOException {
+			TarEntry entry = new TarEntry(path, true);
+			entry.setMode(executable ? EXECUTABLE_MODE : FILE_MODE);
+			entry.setModTime(MODIFICATION_TIME);
+			entry.setIds(0, 0);
+			entry.setNames("", "");
+			entry.setSize(size);
+			tarOutputStream.putNextEntry(entry);
+			IOUtils.copy(content, tarOutputStream);
+			tarOutputStream.closeEntry();
+		}
+
+		@Override
+		public void close() throws IOException {
+			tarOutputStream.close();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.filters.ReplaceTokens;
+
+/**
+ * Renders the expansions of a chart source straight into the chart folder, in a single pass.
+ * <p>
+ * Like a sync, only files whose rendered content differs are written and files no longer part of the source are
+ * deleted. Unchanged files keep their timestamp, so fingerprinting the chart folder afterwards stays cheap.
+ */
+class HelmChartRenderer {
+
+	// the charset gradle filters files with
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final Map<String, String> tokens;
+	private final Map<String, File> sourceFiles = new TreeMap<>();
+	private final Set<String> sourceFolders = new TreeSet<>();
+
+	HelmChartRenderer(File sourceFolder, Map<String, String> tokens) {
+		this.tokens = tokens;
+		collect(sourceFolder, "");
+	}
+
+	private void collect(File folder, String pathPrefix) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String path = pathPrefix + child.getName();
+			if (child.isDirectory()) {
+				sourceFolders.add(path);
+				collect(child, path + "/");
+			} else {
+				sourceFiles.put(path, child);
+			}
+		}
+	}
+
+	/**
+	 * @param path path relative to the source folder, separated by {@code /}
+	 */
+	boolean contains(String path) {
+		return sourceFiles.containsKey(path);
+	}
+
+	/**
+	 * @return the source files in the order of their paths
+	 */
+	Map<String, File> getSourceFiles() {
+		return sourceFiles;
+	}
+
+	/**
+	 * @return the rendered content of the source file, {@code null} if there is no such file
+	 */
+	byte[] render(String path) throws IOException {
+		File file = sourceFiles.get(path);
+		if (file == null) {
+			return null;
+		}
+		ReplaceTokens replaceTokens = new ReplaceTokens(new InputStreamReader(new FileInputStream(file), CHARSET));
+		replaceTokens.setBeginToken("${");
+		replaceTokens.setEndToken("}");
+		tokens.forEach((key, value) -> {
+			ReplaceTokens.Token token = new ReplaceTokens.Token();
+			token.setKey(key);
+			token.setValue(value);
+			replaceTokens.addConfiguredToken(token);
+		});
+		StringWriter rendered = new StringWriter();
+		try (Reader reader = replaceTokens) {
+			IOUtils.copy(reader, rendered);
+		}
+		return rendered.toString().getBytes(CHARSET);
+	}
+
+	/**
+	 * Renders all source files into the chart folder.
+	 *
+	 * @param keep files of the chart folder without source to keep, by path
+	 */
+	Result renderInto(File chartFolder, Predicate<String> keep) throws IOException {
+		Result result = new Result();
+		Files.createDirectories(chartFolder.toPath());
+		for (String folder : sourceFolders) {
+			Files.createDirectories(new File(chartFolder, folder).toPath());
+		}
+		for (Map.Entry<String, File> sourceFile : sourceFiles.entrySet()) {
+			byte[] rendered = render(sourceFile.getKey());
+			File target = new File(chartFolder, sourceFile.getKey());
+			if (target.isFile() && target.length() == rendered.length
+					&& Arrays.equals(Files.readAllBytes(target.toPath()), rendered))
+			{
+				result.unchanged++;
+			} else {
+				Files.write(target.toPath(), rendered);
+				result.written++;
+			}
+			if (sourceFile.getValue().canExecute() != target.canExecute()) {
+				target.setExecutable(sourceFile.getValue().canExecute());
+			}
+		}
+		deleteStale(chartFolder, "", keep, result);
+		return result;
+	}
+
+	private void deleteStale(File folder, String pathPrefix, Predicate<String> keep, Result result) throws IOException {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String path = pathPrefix + child.getName();
+			if (child.isDirectory()) {
+				deleteStale(child, path + "/", keep, result);
+				String[] remaining = child.list();
+				if (!sourceFolders.contains(path) && remaining != null && remaining.length == 0) {
+					Files.delete(child.toPath());
+				}
+			} else if (!sourceFiles.containsKey(path) && !keep.test(path)) {
+				Files.delete(child.toPath());
+				result.deleted++;
+			}
+		}
+	}
+
+	static class Result {
+		int written;
+		int unchanged;
+		int deleted;
+	}
+}
@@ -0,0 +1,157 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+import com.kiwigrid.k8s.helm.HelmRepository;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Uploads chart archives to a helm repository.
+ * <p>
+ * Connections are not disconnected and responses are read completely, so the JDK keeps the connection alive and
+ * subsequent uploads to the same host skip the TCP and TLS handshake.
+ */
+class HelmChartUploader {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmChartUploader.class);
+
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final HelmRepository target;
+
+	private final int retries;
+
+	HelmChartUploader(HelmRepository target, int retries) {
+		this.target = target;
+		this.retries = retries;
+	}
+
+	/**
+	 * Uploads the file, starting over with exponential backoff if the connection fails or the server responds with a
+	 * 5xx status.
+	 */
+	void upload(File file) throws IOException {
+		String uploadUrl = target.getDeploySpec().getUploadUrl();
+		if (target.getDeploySpec().getMethod() == HelmRepository.DeploymentSpec.HttpMethod.PUT
+				&& uploadUrl.endsWith("/"))
+		{
+			// concatenate file name
+			uploadUrl = uploadUrl.concat(file.getName());
+		}
+		for (int attempt = 0; ; attempt++) {
+			try {
+				uploadOnce(file, new URL(uploadUrl));
+				return;
+			} catch (IOException e) {
+				if (attempt >= retries) {
+					throw e;
+				}
+				long backoff = INITIAL_BACKOFF_MILLIS << attempt;
+				LOGGER.warn("Upload of {} failed ({}), retrying in {} ms", file.getName(), e.getMessage(), backoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry upload of " + file);
+				}
+			}
+		}
+	}
+
+	private void uploadOnce(File file, URL url) throws IOException {
+		long start = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		authenticate(connection, target);
+		connection.setDoOutput(true);
+		connection.setRequestMethod(target.getDeploySpec().getMethod().name());
+		connection.setRequestProperty("Content-Type", "application/gzip");
+		// otherwise the whole archive is buffered in memory to determine its length
+		connection.setFixedLengthStreamingMode(file.length());
+		try (InputStream fileInputStream = new FileInputStream(file);
+			 OutputStream outputStream = connection.getOutputStream())
+		{
+			copyWithProgress(file, fileInputStream, outputStream);
+		}
+		String responseMessage = getResponseMessage(connection);
+		String failure = "Failed to upload chart "
+				+ file
+				+ " via "
+				+ connection.getRequestMethod()
+				+ " to "
+				+ connection.getURL()
+				+ " : "
+				+ responseMessage;
+		if (connection.getResponseCode() >= 500) {
+			// retried like a failing connection
+			throw new IOException(failure);
+		} else if (connection.getResponseCode() >= 400) {
+			throw new RuntimeException(failure);
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		LOGGER.lifecycle("Chart {} uploaded via {} {} in {} ms ({} KiB/s): {}",
+				file,
+				connection.getRequestMethod(),
+				connection.getURL(),
+				millis,
+				String.format(Locale.ROOT, "%.1f", file.length() / 1024.0 / (millis / 1000.0)),
+				responseMessage);
+	}
+
+	// logs every tenth of the archive sent
+	private static void copyWithProgress(File file, InputStream inputStream, OutputStream outputStream) throws IOException {
+		long total = file.length();
+		long sent = 0;
+		long nextReport = total / 10;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+			sent += read;
+			if (sent >= nextReport && sent < total) {
+				LOGGER.info("Uploading {}: {} of {} KiB sent", file.getName(), sent / 1024, total / 1024);
+				nextReport = sent + total / 10;
+			}
+		}
+	}
+
+	static void authenticate(HttpURLConnection connection, HelmRepository repository) {
+		if (repository.isAuthenticated()) {
+			String authString = repository.getUser() + ":" + repository.getPassword();
+			String authHeaderValue = "Basic " + new String(Base64.getEncoder()
+					.encode(authString.getBytes(StandardCharsets.UTF_8)), StandardCharsets.US_ASCII);
+			connection.setRequestProperty("Authorization", authHeaderValue);
+		}
+	}
+
+	/**
+	 * Reads the response to its end, which hands the connection back to the keep-alive cache.
+	 */
+	private static String getResponseMessage(HttpURLConnection connection) throws IOException {
+		int responseCode = connection.getResponseCode();
+		if (responseCode >= 400) {
+			// there is no error stream for a response without body, and the input stream throws for such codes
+			try (InputStream errorStream = connection.getErrorStream()) {
+				return errorStream != null
+						? "Code " + responseCode + " - " + IOUtils.toString(errorStream, StandardCharsets.UTF_8)
+						: "Code " + responseCode;
+			}
+		}
+		try (InputStream inputStream = connection.getInputStream()) {
+			IOUtils.skip(inputStream, Long.MAX_VALUE);
+		}
+		return "Code " + responseCode;
+	}
+}
@@ -0,0 +1,204 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kiwigrid.k8s.helm.Digests;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.Project;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build wide cache of chart dependency archives, shared by all projects and builds of a gradle user home.
+ * <p>
+ * Archives are stored per repository, name and version of a locked dependency along with their SHA-256 which is
+ * verified whenever an archive is handed out. The least recently used archives are evicted once the cache exceeds
+ * its maximum size. Hits and misses are reported when the build finishes.
+ */
+public abstract class HelmDependencyCache implements BuildService<HelmDependencyCache.Parameters>, AutoCloseable {
+
+	public static final String SERVICE_NAME = "helmDependencyCache";
+	public static final String MAX_SIZE_PROPERTY = "helmDependencyCacheMaxSizeMb";
+	private static final long DEFAULT_MAX_SIZE_MB = 512;
+	private static final String DIGEST_SUFFIX = ".sha256";
+
+	private static final Logger LOGGER = Logging.getLogger(HelmDependencyCache.class);
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public interface Parameters extends BuildServiceParameters {
+		DirectoryProperty getCacheDirectory();
+
+		Property<Long> getMaxSizeBytes();
+	}
+
+	public static Provider<HelmDependencyCache> registerIfAbsent(Project project) {
+		Gradle gradle = project.getGradle();
+		Object maxSizeMb = project.findProperty(MAX_SIZE_PROPERTY);
+		return gradle.getSharedServices().registerIfAbsent(SERVICE_NAME, HelmDependencyCache.class, spec -> {
+			spec.getParameters()
+					.getCacheDirectory()
+					.set(new File(gradle.getGradleUserHomeDir(), "caches/helm/dependencies"));
+			spec.getParameters()
+					.getMaxSizeBytes()
+					.set((maxSizeMb != null ? Long.parseLong(maxSizeMb.toString()) : DEFAULT_MAX_SIZE_MB) * 1024 * 1024);
+		});
+	}
+
+	/**
+	 * Puts the archives of all given dependencies into the charts folder, but only if every one of them is cached.
+	 *
+	 * @return whether the dependencies have been restored
+	 */
+	public synchronized boolean restore(List<LockedDependency> dependencies, File chartsFolder) {
+		for (LockedDependency dependency : dependencies) {
+			if (!isCached(dependency)) {
+				misses.addAndGet(dependencies.size());
+				return false;
+			}
+		}
+		try {
+			Files.createDirectories(chartsFolder.toPath());
+			for (LockedDependency dependency : dependencies) {
+				File archive = archiveOf(dependency);
+				File target = new File(chartsFolder, archive.getName());
+				Files.deleteIfExists(target.toPath());
+				try {
+					Files.createLink(target.toPath(), archive.toPath());
+				} catch (IOException | UnsupportedOperationException e) {
+					// e.g. cache and build directory on different file systems
+					Files.copy(archive.toPath(), target.toPath());
+				}
+				// used, so not to be evicted next
+				archive.setLastModified(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		hits.addAndGet(dependencies.size());
+		return true;
+	}
+
+	/**
+	 * Adds the archives of the given dependencies found in the charts folder to the cache.
+	 */
+	public synchronized void store(List<LockedDependency> dependencies, File chartsFolder) {
+		try {
+			for (LockedDependency dependency : dependencies) {
+				File archive = archiveOf(dependency);
+				File built = new File(chartsFolder, archive.getName());
+				if (!built.isFile() || isCached(dependency)) {
+					continue;
+				}
+				Files.createDirectories(archive.getParentFile().toPath());
+				// other builds may use the same cache, so copy aside and move into place
+				File temporary = File.createTempFile(archive.getName(), ".tmp", archive.getParentFile());
+				Files.copy(built.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				Files.write(digestOf(dependency).toPath(),
+						Digests.checksum(temporary).getBytes(StandardCharsets.UTF_8));
+				Files.move(temporary.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			evictLeastRecentlyUsed();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private boolean isCached(LockedDependency dependency) {
+		File archive = archiveOf(dependency);
+		File digest = digestOf(dependency);
+		if (!archive.isFile() || !digest.isFile()) {
+			return false;
+		}
+		try {
+			String expected = new String(Files.readAllBytes(digest.toPath()), StandardCharsets.UTF_8).trim();
+			if (expected.equals(Digests.checksum(archive))) {
+				return true;
+			}
+			LOGGER.warn("Evicting corrupt cached dependency {}", archive);
+			Files.delete(archive.toPath());
+			Files.delete(digest.toPath());
+			return false;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void evictLeastRecentlyUsed() throws IOException {
+		if (!cacheDirectory().isDirectory()) {
+			return;
+		}
+		long maxSize = getParameters().getMaxSizeBytes().get();
+		File[] archives = FileUtils.listFiles(cacheDirectory(), new String[] {"tgz"}, true).toArray(new File[0]);
+		long size = Arrays.stream(archives).mapToLong(File::length).sum();
+		Arrays.sort(archives, Comparator.comparingLong(File::lastModified));
+		for (File archive : archives) {
+			if (size <= maxSize) {
+				break;
+			}
+			size -= archive.length();
+			LOGGER.info("Evicting {} from helm dependency cache", archive);
+			Files.deleteIfExists(archive.toPath());
+			Files.deleteIfExists(new File(archive.getPath() + DIGEST_SUFFIX).toPath());
+		}
+	}
+
+	private File archiveOf(LockedDependency dependency) {
+		File repositoryFolder = new File(cacheDirectory(), Digests.sha256().add(dependency.repository).hex());
+		return new File(repositoryFolder, dependency.name + "-" + dependency.version + ".tgz");
+	}
+
+	private File digestOf(LockedDependency dependency) {
+		return new File(archiveOf(dependency).getPath() + DIGEST_SUFFIX);
+	}
+
+	private File cacheDirectory() {
+		return getParameters().getCacheDirectory().get().getAsFile();
+	}
+
+	@Override
+	public void close() {
+		if (hits.get() + misses.get() > 0) {
+			LOGGER.lifecycle("Helm dependency cache: {} hits, {} misses", hits.get(), misses.get());
+		}
+	}
+
+	/**
+	 * A dependency as pinned by {@code Chart.lock} or {@code requirements.lock}.
+	 */
+	public static class LockedDependency {
+		final String name;
+		final String version;
+		final String repository;
+
+		LockedDependency(String name, String version, String repository) {
+			this.name = name;
+			this.version = version;
+			this.repository = repository;
+		}
+
+		/**
+		 * Only dependencies fetched from a repository by URL can be shared, aliases and local charts are project
+		 * specific.
+		 */
+		boolean isCacheable() {
+			return repository != null && (repository.startsWith("http://") || repository.startsWith("https://"));
+		}
+	}
+}
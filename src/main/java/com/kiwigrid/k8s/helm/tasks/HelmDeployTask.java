@@ -1,44 +1,102 @@
 package com.kiwigrid.k8s.helm.tasks;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.kiwigrid.k8s.helm.Digests;
 import com.kiwigrid.k8s.helm.HelmRepository;
-import org.apache.commons.io.IOUtils;
-import org.gradle.api.file.ConfigurableFileTree;
-import org.gradle.api.plugins.BasePlugin;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import javax.inject.Inject;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
 /**
  * created on 28.03.18.
  *
  * @author Jörg Eichhorn {@literal <joerg.eichhorn@kiwigrid.com>}
  */
-public class HelmDeployTask extends AbstractHelmTask {
+public abstract class HelmDeployTask extends AbstractHelmTask {
 
 	private HelmRepository target;
 
-	public HelmDeployTask() {
+	private int parallelism = 4;
+
+	private boolean skipExisting;
+
+	private int retries = 3;
+
+	private final ConfigurableFileCollection charts;
+
+	private final WorkerExecutor workerExecutor;
+
+	@Inject
+	public HelmDeployTask(ObjectFactory objectFactory, WorkerExecutor workerExecutor) {
+		this.workerExecutor = workerExecutor;
 		setDescription("Uploads Helm chart to a helm repository");
+		charts = objectFactory.fileCollection();
+		// folders the charts were packaged into, the plugin wires in the outputs of its chart build tasks instead
+		charts.from(getProject().provider(this::getOutputDirectory));
 	}
 
 	@TaskAction
 	public void deploy() throws IOException {
-		ConfigurableFileTree chartFiles = getProject().fileTree(getOutputDirectory());
-		chartFiles.include("*.tgz");
+		try (HelmTracer.Span span = startSpan("helm chart deploy")) {
+			deploy(span.getSpanId());
+		}
+	}
+
+	private void deploy(String spanId) throws IOException {
+		FileTree chartFiles = charts.getAsFileTree().matching(patterns -> patterns.include("*.tgz"));
 		if (target == null || target.getDeploySpec() == null || target.getDeploySpec().getUploadUrl() == null) {
 			throw new IllegalArgumentException("Missing target upload info");
 		}
-		for (File chartFile : chartFiles) {
-			uploadSingle(chartFile);
+		List<File> files = new ArrayList<>(chartFiles.getFiles());
+		if (skipExisting) {
+			HelmRepositoryIndex index = HelmRepositoryIndex.fetch(target);
+			List<File> missing = new ArrayList<>();
+			for (File file : files) {
+				if (index.contains(file.getName(), Digests.checksum(file))) {
+					getLogger().lifecycle("Chart {} already in {}, skipping upload", file.getName(), target.getName());
+				} else {
+					missing.add(file);
+				}
+			}
+			files = missing;
+		}
+		WorkQueue workQueue = workerExecutor.noIsolation();
+		int slices = Math.min(parallelism, files.size());
+		for (int slice = 0; slice < slices; slice++) {
+			List<File> sliceFiles = new ArrayList<>();
+			for (int i = slice; i < files.size(); i += slices) {
+				sliceFiles.add(files.get(i));
+			}
+			workQueue.submit(HelmDeployWorkAction.class, parameters -> {
+				parameters.getTarget().set(target);
+				parameters.getChartFiles().set(sliceFiles);
+				parameters.getRetries().set(retries);
+				parameters.getTracer().set(getTracer());
+				parameters.getParentSpanId().set(spanId);
+			});
 		}
+		// the uploads are part of the span of the task
+		workQueue.await();
+	}
+
+	@InputFiles
+	@PathSensitive(PathSensitivity.NAME_ONLY)
+	public ConfigurableFileCollection getCharts() {
+		return charts;
 	}
 
 	@Input
@@ -51,61 +109,49 @@ public class HelmDeployTask extends AbstractHelmTask {
 		return this;
 	}
 
-	private void uploadSingle(File file) throws IOException {
-		String uploadUrl = target.getDeploySpec().getUploadUrl();
-		if (target.getDeploySpec().getMethod() == HelmRepository.DeploymentSpec.HttpMethod.PUT
-				&& uploadUrl.endsWith("/"))
-		{
-			// concatenate file name
-			uploadUrl = uploadUrl.concat(file.getName());
-		}
-		HttpURLConnection connection = (HttpURLConnection) new URL(uploadUrl).openConnection();
-
-		try {
-			if (target.isAuthenticated()) {
-				String authString = target.getUser() + ":" + target.getPassword();
-				String authHeaderValue = "Basic " + new String(Base64.getEncoder()
-						.encode(authString.getBytes(StandardCharsets.UTF_8)), StandardCharsets.US_ASCII);
-				connection.setRequestProperty("Authorization", authHeaderValue);
-			}
-			connection.setDoOutput(true);
-			connection.setRequestMethod(target.getDeploySpec().getMethod().name());
-			connection.setRequestProperty("Content-Type", "application/gzip");
-			try (FileInputStream fileInputStream = new FileInputStream(file)) {
-				IOUtils.copy(fileInputStream, connection.getOutputStream());
-			}
-			if (connection.getResponseCode() >= 400) {
-				throw new RuntimeException("Failed to upload chart "
-						+ file
-						+ " via "
-						+ connection.getRequestMethod()
-						+ " to "
-						+ connection.getURL()
-						+ " : "
-						+ getResponseMessage(connection));
-			} else {
-				getLogger().lifecycle("Chart {} uploaded via {} {}: {}",
-						file,
-						connection.getRequestMethod(),
-						connection.getURL(),
-						getResponseMessage(connection)
-				);
-			}
-		} finally {
-			connection.disconnect();
+	@Input
+	public boolean getSkipExisting() {
+		return skipExisting;
+	}
+
+	/**
+	 * @param skipExisting whether to skip charts the target repository already lists with the same digest in its
+	 * index
+	 */
+	public HelmDeployTask setSkipExisting(boolean skipExisting) {
+		this.skipExisting = skipExisting;
+		return this;
+	}
+
+	@Internal
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @param retries how often a failed upload is started over, with exponentially growing delays, defaults to 3
+	 */
+	public HelmDeployTask setRetries(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("retries must not be negative, found: " + retries);
 		}
+		this.retries = retries;
+		return this;
 	}
 
-	private static String getResponseMessage(HttpURLConnection connection) throws IOException {
-		try (InputStream errorStream = connection.getErrorStream()) {
-			if (errorStream != null) {
-				return "Code "
-						+ connection.getResponseCode()
-						+ " - "
-						+ IOUtils.toString(errorStream, StandardCharsets.UTF_8);
-			} else {
-				return "Code " + connection.getResponseCode();
-			}
+	@Internal
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of charts uploaded concurrently, defaults to 4
+	 */
+	public HelmDeployTask setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, found: " + parallelism);
 		}
+		this.parallelism = parallelism;
+		return this;
 	}
 }
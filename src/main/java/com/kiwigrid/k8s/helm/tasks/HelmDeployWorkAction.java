@@ -0,0 +1,49 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import com.kiwigrid.k8s.helm.HelmRepository;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Uploads a slice of the charts of a deployment one after another.
+ */
+public abstract class HelmDeployWorkAction implements WorkAction<HelmDeployWorkAction.Parameters> {
+
+	public interface Parameters extends WorkParameters {
+		Property<HelmRepository> getTarget();
+
+		ListProperty<File> getChartFiles();
+
+		Property<Integer> getRetries();
+
+		Property<HelmTracer> getTracer();
+
+		/**
+		 * span of the task the uploads are traced as children of
+		 */
+		Property<String> getParentSpanId();
+	}
+
+	@Override
+	public void execute() {
+		HelmChartUploader uploader = new HelmChartUploader(getParameters().getTarget().get(),
+				getParameters().getRetries().get());
+		for (File chartFile : getParameters().getChartFiles().get()) {
+			try (HelmTracer.Span ignored = getParameters().getTracer()
+					.get()
+					.startSpan("upload " + chartFile.getName(), getParameters().getParentSpanId().get()))
+			{
+				uploader.upload(chartFile);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
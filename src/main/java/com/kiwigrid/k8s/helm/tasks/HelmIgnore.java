@@ -0,0 +1,123 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.gradle.api.GradleException;
+
+/**
+ * Rules of the {@code .helmignore} file of a chart, evaluated the way helm's {@code pkg/ignore} does: a path is
+ * ignored as soon as a rule matches it, while a rule negated by {@code !} ignores every path it does <em>not</em>
+ * match. Rules without a slash match the file name, rules with a slash the path relative to the chart folder, a
+ * leading slash is dropped and a trailing slash only matches directories.
+ */
+class HelmIgnore {
+
+	static final String FILE_NAME = ".helmignore";
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	private HelmIgnore() {
+		// helm never packages hidden files of the templates folder
+		rules.add(new Rule("templates/.?*"));
+	}
+
+	static HelmIgnore load(File chartFolder) throws IOException {
+		HelmIgnore helmIgnore = new HelmIgnore();
+		File file = new File(chartFolder, FILE_NAME);
+		if (file.isFile()) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String rule = line.trim();
+				if (rule.contains("**")) {
+					throw new GradleException("Invalid rule '" + rule + "' in " + file + ": ** is not supported by helm");
+				}
+				if (!rule.isEmpty() && !rule.startsWith("#")) {
+					helmIgnore.rules.add(new Rule(rule));
+				}
+			}
+		}
+		return helmIgnore;
+	}
+
+	/**
+	 * @param path path relative to the chart folder, separated by {@code /}
+	 */
+	boolean isIgnored(String path, boolean directory) {
+		for (Rule rule : rules) {
+			if (rule.negated) {
+				if ((rule.directoriesOnly && !directory) || !rule.matches(path)) {
+					return true;
+				}
+			} else if ((!rule.directoriesOnly || directory) && rule.matches(path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Rule {
+		final boolean negated;
+		final boolean directoriesOnly;
+		final boolean matchesName;
+		final Pattern pattern;
+
+		Rule(String rule) {
+			negated = rule.startsWith("!");
+			if (negated) {
+				rule = rule.substring(1);
+			}
+			directoriesOnly = rule.endsWith("/");
+			if (directoriesOnly) {
+				rule = rule.substring(0, rule.length() - 1);
+			}
+			matchesName = !rule.contains("/");
+			if (rule.startsWith("/")) {
+				rule = rule.substring(1);
+			}
+			pattern = Pattern.compile(globToRegex(rule));
+		}
+
+		boolean matches(String path) {
+			return pattern.matcher(matchesName ? path.substring(path.lastIndexOf('/') + 1) : path).matches();
+		}
+
+		// the glob syntax of go's filepath.Match, wildcards do not match a separator
+		private static String globToRegex(String glob) {
+			StringBuilder regex = new StringBuilder();
+			for (int i = 0; i < glob.length(); i++) {
+				char c = glob.charAt(i);
+				switch (c) {
+				case '*':
+					regex.append("[^/]*");
+					break;
+				case '?':
+					regex.append("[^/]");
+					break;
+				case '[':
+					int end = glob.indexOf(']', i + 1);
+					if (end < 0) {
+						regex.append("\\[");
+					} else {
+						// ranges and negation by '^' mean the same in a regular expression
+						regex.append(glob, i, end + 1);
+						i = end;
+					}
+					break;
+				case '\\':
+					if (i + 1 < glob.length()) {
+						regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+					}
+					break;
+				default:
+					regex.append(Pattern.quote(String.valueOf(c)));
+				}
+			}
+			return regex.toString();
+		}
+	}
+}
@@ -13,7 +13,7 @@ import org.gradle.api.tasks.TaskAction;
  *
  * @author Jörg Eichhorn {@literal <joerg.eichhorn@kiwigrid.com>}
  */
-public class HelmInitTask extends AbstractHelmTask {
+public abstract class HelmInitTask extends AbstractHelmTask {
 
 	private final Logger logger = getLogger();
 
@@ -23,7 +23,7 @@ public class HelmInitTask extends AbstractHelmTask {
 
 	@TaskAction
 	public void helmInit() {
-		HelmPlugin.helmExecSuccess(getProject(), this, "init", "--client-only");
+		HelmPlugin.helmExecSuccess(helmExecutor(), this, "init", "--client-only");
 	}
 
 	@OutputDirectory
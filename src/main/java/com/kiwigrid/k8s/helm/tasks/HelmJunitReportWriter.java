@@ -0,0 +1,121 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a junit XML report one test case at a time, flushing after each of them so the report can be followed while
+ * the tests are running and never has to be kept in memory as a whole.
+ */
+class HelmJunitReportWriter implements Closeable {
+
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	private final OutputStream outputStream;
+	private final XMLStreamWriter writer;
+
+	HelmJunitReportWriter(File reportFile, String suiteName, int tests) throws IOException {
+		outputStream = new BufferedOutputStream(new FileOutputStream(reportFile));
+		try {
+			writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(outputStream, StandardCharsets.UTF_8.name());
+			writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+			writer.writeStartElement("testsuites");
+			writer.writeStartElement("testsuite");
+			writer.writeAttribute("name", suiteName);
+			writer.writeAttribute("tests", Integer.toString(tests));
+			flush();
+		} catch (XMLStreamException e) {
+			outputStream.close();
+			throw new IOException("Failed to write junit report " + reportFile, e);
+		}
+	}
+
+	void testCase(HelmTestCaseResult result) throws IOException {
+		try {
+			writer.writeStartElement("testcase");
+			writer.writeAttribute("name", sanitize(result.title));
+			writer.writeAttribute("classname", sanitize(result.name));
+			writer.writeAttribute("time", String.format(Locale.ROOT, "%.3f", result.getDurationMillis() / 1000.0));
+			for (HelmTestCaseResult.Failure failure : result.getFailures()) {
+				if (failure.details != null) {
+					writer.writeStartElement("failure");
+					writer.writeAttribute("message", sanitize(failure.message));
+					writer.writeCharacters(sanitize(failure.details));
+					writer.writeEndElement();
+				} else {
+					writer.writeEmptyElement("failure");
+					writer.writeAttribute("message", sanitize(failure.message));
+				}
+			}
+			if (!result.getOutput().isEmpty()) {
+				writer.writeStartElement("system-out");
+				writer.writeCharacters(sanitize(result.getOutput()));
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			flush();
+		} catch (XMLStreamException e) {
+			throw new IOException("Failed to write test case " + result.name, e);
+		}
+	}
+
+	void skippedTestCase(String name, String title, String message) throws IOException {
+		try {
+			writer.writeStartElement("testcase");
+			writer.writeAttribute("name", sanitize(title));
+			writer.writeAttribute("classname", sanitize(name));
+			writer.writeEmptyElement("skipped");
+			writer.writeAttribute("message", sanitize(message));
+			writer.writeEndElement();
+			flush();
+		} catch (XMLStreamException e) {
+			throw new IOException("Failed to write skipped test case " + name, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// closes testsuite and testsuites
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Failed to complete junit report", e);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	private void flush() throws XMLStreamException, IOException {
+		writer.flush();
+		outputStream.flush();
+	}
+
+	/**
+	 * Drops characters XML 1.0 cannot represent at all (e.g. the escape character of colored helm output).
+	 */
+	static String sanitize(String text) {
+		StringBuilder sanitized = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			boolean valid = c == '\t' || c == '\n' || c == '\r' || (c >= 0x20 && c <= 0xFFFD);
+			if (!valid && sanitized == null) {
+				sanitized = new StringBuilder(text.length());
+				sanitized.append(text, 0, i);
+			} else if (valid && sanitized != null) {
+				sanitized.append(c);
+			}
+		}
+		return sanitized == null ? text : sanitized.toString();
+	}
+}
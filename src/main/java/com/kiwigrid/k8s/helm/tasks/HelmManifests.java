@@ -0,0 +1,91 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Manifests rendered by {@code helm template}, split on the {@code # Source:} comment helm puts in front of every
+ * document. The content of a manifest is what {@code helm template --output-dir} would have written to its file.
+ * <p>
+ * The output can be read as a whole or line by line while helm is rendering.
+ */
+class HelmManifests implements Consumer<String>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final String DOCUMENT_SEPARATOR = "---";
+	private static final String SOURCE_MARKER = "# Source: ";
+
+	// by path relative to the output folder, starting with the chart name
+	private final Map<String, StringBuilder> manifests = new LinkedHashMap<>();
+	// state while reading
+	private transient StringBuilder current;
+	private transient boolean separatorPending;
+
+	static HelmManifests read(String templateOutput) {
+		HelmManifests helmManifests = new HelmManifests();
+		try (BufferedReader reader = new BufferedReader(new StringReader(templateOutput))) {
+			reader.lines().forEach(helmManifests);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return helmManifests;
+	}
+
+	/**
+	 * Reads the next line of the {@code helm template} output.
+	 */
+	@Override
+	public void accept(String line) {
+		if (line.startsWith(SOURCE_MARKER)) {
+			current = manifests.computeIfAbsent(line.substring(SOURCE_MARKER.length()).trim(),
+					path -> new StringBuilder());
+			current.append(DOCUMENT_SEPARATOR).append('\n').append(line).append('\n');
+			separatorPending = false;
+		} else if (line.equals(DOCUMENT_SEPARATOR)) {
+			// belongs to the next document, unless no source follows
+			if (separatorPending && current != null) {
+				current.append(DOCUMENT_SEPARATOR).append('\n');
+			}
+			separatorPending = true;
+		} else if (current != null) {
+			if (separatorPending) {
+				current.append(DOCUMENT_SEPARATOR).append('\n');
+				separatorPending = false;
+			}
+			current.append(line).append('\n');
+		}
+	}
+
+	/**
+	 * @param path path of the manifest, starting with the chart name
+	 * @return the content of the manifest, {@code null} if nothing was rendered for the path
+	 */
+	String get(String path) {
+		StringBuilder manifest = manifests.get(path);
+		return manifest != null ? manifest.toString() : null;
+	}
+
+	int size() {
+		return manifests.size();
+	}
+
+	/**
+	 * Writes the manifests the way {@code helm template --output-dir} does.
+	 */
+	void writeTo(File outputFolder) throws IOException {
+		for (Map.Entry<String, StringBuilder> manifest : manifests.entrySet()) {
+			File file = new File(outputFolder, manifest.getKey());
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), manifest.getValue().toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.kiwigrid.k8s.helm.Digests;
+import com.kiwigrid.k8s.helm.HelmMetrics;
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.process.ExecResult;
+import org.gradle.process.internal.ExecException;
+
+/**
+ * Content addressed cache of helm lint/template executions of test cases.
+ * <p>
+ * Entries are keyed by the digest of the chart folder, the test values and the helm version, so an execution is only
+ * repeated if one of them changed. Exit value and output of the command are kept, for {@code helm template} this
+ * includes the rendered manifests.
+ */
+class HelmRenderCache {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmRenderCache.class);
+	private static final String RESULT_FILE_NAME = "result.ser";
+
+	public static final String CACHE_NAME = "helmRenderCache";
+
+	private final File cacheFolder;
+	private final HelmMetrics metrics;
+
+	HelmRenderCache(File cacheFolder) {
+		this(cacheFolder, null);
+	}
+
+	/**
+	 * @param metrics where hits and misses are recorded, may be {@code null}
+	 */
+	HelmRenderCache(File cacheFolder, HelmMetrics metrics) {
+		this.cacheFolder = cacheFolder;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Runs the given execution unless a cached result for the key and command exists.
+	 */
+	HelmPlugin.HelmExecResult exec(String key, String command, Supplier<HelmPlugin.HelmExecResult> execution) {
+		File entryFolder = new File(new File(cacheFolder, key), command);
+		File resultFile = new File(entryFolder, RESULT_FILE_NAME);
+		try {
+			Entry entry = readEntry(resultFile);
+			recordAccess(entry != null);
+			if (entry != null) {
+				LOGGER.info("Reusing cached helm {} from {}", command, entryFolder);
+				return entry.toExecResult();
+			}
+			HelmPlugin.HelmExecResult execResult = execution.get();
+			store(entryFolder, new Entry(execResult, null));
+			return execResult;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Runs the given execution capturing the rendered manifests unless a cached result for the key and command
+	 * exists. The manifests are cached along with the result.
+	 */
+	CapturedExecution execCapturing(String key, String command, Supplier<CapturedExecution> execution) {
+		File entryFolder = new File(new File(cacheFolder, key), command);
+		try {
+			Entry entry = readEntry(new File(entryFolder, RESULT_FILE_NAME));
+			recordAccess(entry != null);
+			if (entry != null) {
+				LOGGER.info("Reusing cached helm {} from {}", command, entryFolder);
+				return new CapturedExecution(entry.toExecResult(), entry.manifests);
+			}
+			CapturedExecution capturedExecution = execution.get();
+			store(entryFolder, new Entry(capturedExecution.execResult, capturedExecution.manifests));
+			return capturedExecution;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void recordAccess(boolean hit) {
+		if (metrics != null) {
+			metrics.recordCacheAccess(CACHE_NAME, hit);
+		}
+	}
+
+	/**
+	 * Deletes all entries except the given ones.
+	 */
+	void retainOnly(Set<String> keys) throws IOException {
+		File[] entries = cacheFolder.listFiles(File::isDirectory);
+		if (entries == null) {
+			return;
+		}
+		for (File entry : entries) {
+			if (!keys.contains(entry.getName())) {
+				FileUtils.deleteDirectory(entry);
+			}
+		}
+	}
+
+	private void store(File entryFolder, Entry entry) throws IOException {
+		// concurrent test cases may share values, so fill a private folder and move it into place atomically
+		File parent = entryFolder.getParentFile();
+		parent.mkdirs();
+		File temporaryFolder = Files.createTempDirectory(parent.toPath(), entryFolder.getName()).toFile();
+		try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(new File(temporaryFolder,
+				RESULT_FILE_NAME))))
+		{
+			outputStream.writeObject(entry);
+		}
+		if (!temporaryFolder.renameTo(entryFolder)) {
+			// somebody else stored the very same execution first
+			FileUtils.deleteDirectory(temporaryFolder);
+		}
+	}
+
+	/**
+	 * @return the cached entry, {@code null} if there is none or it was written by an incompatible version
+	 */
+	private static Entry readEntry(File resultFile) throws IOException {
+		if (!resultFile.isFile()) {
+			return null;
+		}
+		try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(resultFile))) {
+			return (Entry) inputStream.readObject();
+		} catch (InvalidClassException | ClassNotFoundException e) {
+			LOGGER.info("Ignoring incompatible cache entry {}", resultFile);
+			return null;
+		}
+	}
+
+	static String chartDigest(File chartFolder) throws IOException {
+		return Digests.sha256().addDirectory(chartFolder).hex();
+	}
+
+	static String cacheKey(String chartDigest, File valueFile, String helmVersion) throws IOException {
+		return Digests.sha256()
+				.add(chartDigest)
+				.addFile(valueFile)
+				.add(helmVersion)
+				.hex();
+	}
+
+	/**
+	 * Result of an execution along with the manifests read from its standard output.
+	 */
+	static class CapturedExecution {
+		final HelmPlugin.HelmExecResult execResult;
+		final HelmManifests manifests;
+
+		CapturedExecution(HelmPlugin.HelmExecResult execResult, HelmManifests manifests) {
+			this.execResult = execResult;
+			this.manifests = manifests;
+		}
+	}
+
+	private static class Entry implements Serializable {
+		private static final long serialVersionUID = 3L;
+
+		private final int exitValue;
+		private final String[] output;
+		private final String[] standardOutput;
+		private final String[] errorOutput;
+		private final HelmManifests manifests;
+
+		private Entry(HelmPlugin.HelmExecResult execResult, HelmManifests manifests) {
+			this.exitValue = execResult.execResult.getExitValue();
+			this.output = execResult.output;
+			this.standardOutput = execResult.standardOutput;
+			this.errorOutput = execResult.errorOutput;
+			this.manifests = manifests;
+		}
+
+		private HelmPlugin.HelmExecResult toExecResult() {
+			return new HelmPlugin.HelmExecResult(new CachedExecResult(exitValue), output, standardOutput, errorOutput);
+		}
+	}
+
+	private static class CachedExecResult implements ExecResult {
+		private final int exitValue;
+
+		private CachedExecResult(int exitValue) {
+			this.exitValue = exitValue;
+		}
+
+		@Override
+		public int getExitValue() {
+			return exitValue;
+		}
+
+		@Override
+		public ExecResult assertNormalExitValue() throws ExecException {
+			if (exitValue != 0) {
+				throw new ExecException("Cached helm execution finished with non-zero exit value " + exitValue);
+			}
+			return this;
+		}
+
+		@Override
+		public ExecResult rethrowFailure() throws ExecException {
+			return this;
+		}
+	}
+}
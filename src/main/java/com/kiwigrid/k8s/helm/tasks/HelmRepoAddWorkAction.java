@@ -0,0 +1,96 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.kiwigrid.k8s.helm.HelmExecutor;
+import com.kiwigrid.k8s.helm.HelmMetrics;
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import com.kiwigrid.k8s.helm.HelmRepository;
+import com.kiwigrid.k8s.helm.HelmSpec;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import javax.inject.Inject;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.process.ExecOperations;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Adds a slice of repositories, fetching their indexes from the {@link HelmRepositoryIndexServer}, each one into a
+ * repository config of its own so several repositories can be added at the same time.
+ */
+public abstract class HelmRepoAddWorkAction implements WorkAction<HelmRepoAddWorkAction.Parameters> {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmRepoAddWorkAction.class);
+
+	public interface Parameters extends WorkParameters {
+		Property<HelmSpec> getHelmSpec();
+
+		ListProperty<HelmRepository> getRepositories();
+
+		/**
+		 * folder receiving a {@code <repository name>.yaml} config per added repository
+		 */
+		DirectoryProperty getRepositoryConfigFolder();
+
+		/**
+		 * urls the repositories are added from by repository name
+		 */
+		MapProperty<String, String> getIndexUrls();
+
+		Property<HelmMetrics> getMetrics();
+
+		Property<String> getTaskPath();
+
+		Property<HelmTracer> getTracer();
+
+		/**
+		 * span of the task the repositories are traced as children of
+		 */
+		Property<String> getParentSpanId();
+	}
+
+	@Inject
+	public abstract ExecOperations getExecOperations();
+
+	@Override
+	public void execute() {
+		for (HelmRepository repository : getParameters().getRepositories().get()) {
+			try (HelmTracer.Span ignored = getParameters().getTracer()
+					.get()
+					.startSpan("add repository " + repository.getName(), getParameters().getParentSpanId().get()))
+			{
+				addRepository(repository,
+						new File(getParameters().getRepositoryConfigFolder().get().getAsFile(),
+								repository.getName() + ".yaml"));
+			}
+		}
+	}
+
+	private void addRepository(HelmRepository repository, File repositoryConfig) {
+		long start = System.currentTimeMillis();
+		List<Object> arguments = repoAddArguments(repository, getParameters().getIndexUrls().getting(repository.getName()).get());
+		arguments.add("--repository-config=" + repositoryConfig.getAbsolutePath());
+		HelmExecutor helmExecutor = HelmExecutor.forking(getExecOperations())
+				.meteredBy(getParameters().getMetrics().get(), getParameters().getTaskPath().get())
+				.tracedBy(getParameters().getTracer().get());
+		HelmPlugin.helmExecSuccess(helmExecutor, getParameters().getHelmSpec().get(), arguments.toArray());
+		LOGGER.lifecycle("Added helm repository {} in {} ms", repository.getName(), System.currentTimeMillis() - start);
+	}
+
+	static List<Object> repoAddArguments(HelmRepository repository, String url) {
+		List<Object> arguments = new ArrayList<>(Arrays.asList("repo", "add", repository.getName(), url));
+		if (repository.isAuthenticated()) {
+			arguments.add("--username=" + repository.getUser());
+			arguments.add("--password=" + repository.getPassword());
+		}
+		return arguments;
+	}
+}
@@ -1,199 +1,276 @@
 package com.kiwigrid.k8s.helm.tasks;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import com.kiwigrid.k8s.helm.Digests;
 import com.kiwigrid.k8s.helm.HelmPlugin;
 import com.kiwigrid.k8s.helm.HelmRepository;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import com.kiwigrid.k8s.helm.SimpleHelmSpec;
+import javax.inject.Inject;
 import org.gradle.api.NamedDomainObjectContainer;
 import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
-import org.gradle.process.internal.ExecException;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
-import static com.kiwigrid.k8s.helm.HelmPlugin.helmExec;
-import static com.kiwigrid.k8s.helm.HelmPlugin.helmExecSuccess;
 
-public class HelmRepoSyncTask extends AbstractHelmTask {
+public abstract class HelmRepoSyncTask extends AbstractHelmTask {
 
-	private static final Pattern REPO_PATTERN = Pattern.compile("(\\w+)\\s+(.+)");
-
-	private NamedDomainObjectContainer<HelmRepository> repositories;
+	private final ListProperty<HelmRepository> repositories;
 
 	private final Logger logger;
 
 	private final File repositoryYamlOutput;
 
-	public HelmRepoSyncTask() {
+	private final File repositoryYamlDigest;
+
+	private int parallelism = 4;
+
+	private final Property<HelmRepositoryIndexCache> indexCache;
+
+	private final WorkerExecutor workerExecutor;
+
+	@Inject
+	public HelmRepoSyncTask(ObjectFactory objectFactory, WorkerExecutor workerExecutor) {
+		this.workerExecutor = workerExecutor;
+		repositories = objectFactory.listProperty(HelmRepository.class);
+		indexCache = objectFactory.property(HelmRepositoryIndexCache.class);
+		Provider<HelmRepositoryIndexCache> indexCacheService = HelmRepositoryIndexCache.registerIfAbsent(getProject());
+		indexCache.convention(indexCacheService);
+		usesService(indexCacheService);
 		logger = getLogger();
 		repositoryYamlOutput = new File(getProject().getBuildDir(), "helm/out/repocopy.yaml");
-		getOutputs().upToDateWhen(element -> yamlFilesEqual(repositoryYamlOutput, getRepositoryYamlFromHelmHome()));
+		repositoryYamlDigest = new File(getProject().getBuildDir(), "helm/out/repocopy.yaml.sha256");
+		getOutputs().upToDateWhen(element -> isRepositoryYamlUnchanged());
 	}
 
 	@TaskAction
 	public void syncRepos() throws IOException {
-		Map<String, HelmRepository> knownRepos = getKnownHelmRepositories();
-		Set<String> knownRepositoryNames = new HashSet<>(knownRepos.keySet());
-		Set<String> configuredRepositoryNames = repositories.getNames();
+		try (HelmTracer.Span span = startSpan("helm repo sync")) {
+			syncRepos(span.getSpanId());
+		}
+	}
+
+	private void syncRepos(String spanId) throws IOException {
+		File repoFile = getRepositoryYamlFromHelmHome();
+		HelmRepositoriesFile repositoriesFile = HelmRepositoriesFile.load(repoFile);
+		Set<String> knownRepositoryNames = repositoriesFile.getNames();
+		Map<String, HelmRepository> configuredRepositories = configuredRepositories();
+		Set<String> configuredRepositoryNames = configuredRepositories.keySet();
 		Set<String> reposToRemove = new HashSet<>(knownRepositoryNames);
 		reposToRemove.removeAll(configuredRepositoryNames);
 		// never remove 'stable' and 'local'
 		reposToRemove.remove("stable");
 		reposToRemove.remove("local");
 
-		Set<String> reposToAdd = new HashSet<>(configuredRepositoryNames);
-		reposToAdd.removeAll(knownRepositoryNames);
+		// a repository known by a different url is added anew
+		Set<String> reposToAdd = configuredRepositories.values()
+				.stream()
+				.filter(repo -> !isKnown(repositoriesFile, repo))
+				.map(HelmRepository::getName)
+				.collect(Collectors.toSet());
 
-		Set<String> reposToSyncAuthentication = repositories
+		Set<String> reposToSyncAuthentication = configuredRepositories.values()
 				.stream()
 				.filter(HelmRepository::isAuthenticated)
 				.map(HelmRepository::getName)
 				.collect(Collectors.toSet());
 		reposToSyncAuthentication.removeAll(reposToAdd);
 
-		removeRepos(reposToRemove);
-		addRepos(reposToAdd);
-		syncAuth(reposToSyncAuthentication);
+		reposToRemove.forEach(repoName -> {
+			logger.info("Removing helm repository {}", repoName);
+			repositoriesFile.remove(repoName);
+			getFileSystemOperations().delete(deleteSpec -> deleteSpec.delete(cachedIndexFiles(repoName)));
+		});
+		reposToSyncAuthentication.forEach(repoName -> {
+			HelmRepository repo = configuredRepositories.get(repoName);
+			repositoriesFile.setCredentials(repoName, repo.getUser(), repo.getPassword());
+		});
+		if (HelmPlugin.isVersion3OrNewer(getVersion())) {
+			addRepos(reposToAdd, configuredRepositories, repositoriesFile, spanId);
+			repositoriesFile.write();
+		} else {
+			// helm 2 cannot be pointed to another repositories.yaml, so it adds to the written one
+			repositoriesFile.write();
+			addReposSequentially(addableRepos(reposToAdd, configuredRepositories), repoFile);
+		}
+		Set<String> knownRepos = new HashSet<>(configuredRepositoryNames);
+		knownRepos.removeAll(reposToAdd);
+		placeMissingIndexes(addableRepos(knownRepos, configuredRepositories));
 
 		// update output
-		getProject().copy(copySpec -> {
-			copySpec.from(getRepositoryYamlFromHelmHome());
+		getFileSystemOperations().copy(copySpec -> {
+			copySpec.from(repoFile);
 			copySpec.into(repositoryYamlOutput.getParent());
 			copySpec.rename(s -> repositoryYamlOutput.getName());
 		});
+		Files.write(repositoryYamlDigest.toPath(),
+				Digests.sha256().addFile(repoFile).hex().getBytes(StandardCharsets.UTF_8));
 	}
 
-	private void syncAuth(Set<String> reposToSyncAuthentication) throws IOException {
-		// deser reposities.yaml
-		File repoFile = getRepositoryYamlFromHelmHome();
-		Map<String, Object> repoMap;
-		Map repoYaml;
-		if (repoFile.exists()) {
-			try (FileInputStream inputStream = new FileInputStream(repoFile)) {
-				repoYaml = HelmPlugin.YAML.loadAs(inputStream, Map.class);
-				List<Object> repos = (List<Object>) repoYaml.get("repositories");
-				repoMap = repos.stream()
-						.collect(Collectors.toMap(r -> (String) ((Map) r).get("name"), Function.identity()));
-			}
-		} else {
-			repoMap = Collections.emptyMap();
-			repoYaml = Collections.emptyMap();
+	/**
+	 * Compares the digest of the repositories file of the helm home to the one recorded by the last sync, which
+	 * costs the same no matter how many repositories are configured.
+	 */
+	private boolean isRepositoryYamlUnchanged() {
+		if (!repositoryYamlDigest.isFile()) {
+			return false;
 		}
+		try {
+			String recordedDigest = new String(Files.readAllBytes(repositoryYamlDigest.toPath()), StandardCharsets.UTF_8);
+			return recordedDigest.equals(Digests.sha256().addFile(getRepositoryYamlFromHelmHome()).hex());
+		} catch (IOException e) {
+			logger.info("Unable to compare digest of repositories file", e);
+			return false;
+		}
+	}
 
-		Optional<Boolean> changed = reposToSyncAuthentication
-				.stream()
-				.map(repoName -> repositories.getAt(repoName))
-				.map(helmRepository -> {
-					Map repo = (Map) repoMap.get(helmRepository.getName());
-					String user = (String) repo.get("username");
-					String pwd = (String) repo.get("password");
-					if (!Objects.equals(pwd, helmRepository.getPassword()) || !Objects.equals(user,
-							helmRepository.getUser()))
-					{
-						repo.put("username", helmRepository.getUser());
-						repo.put("password", helmRepository.getPassword());
-						return true;
-					} else {
-						return false;
-					}
-				})
-				.reduce((aBoolean, aBoolean2) -> aBoolean || aBoolean2);
-		if (changed.isPresent() && changed.get()) {
-			// persist
-			HelmPlugin.YAML.dump(repoYaml, new FileWriter(repoFile));
+	private static boolean isKnown(HelmRepositoriesFile repositoriesFile, HelmRepository repo) {
+		Map<String, Object> entry = repositoriesFile.get(repo.getName());
+		return entry != null && Objects.equals(stripTrailingSlash((String) entry.get("url")),
+				stripTrailingSlash(repo.getUrl()));
+	}
+
+	private static String stripTrailingSlash(String url) {
+		return url != null && url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	private List<File> cachedIndexFiles(String repoName) {
+		return Arrays.asList(new File(getRepositoryCacheFolder(), repoName + "-index.yaml"),
+				new File(getRepositoryCacheFolder(), repoName + "-charts.txt"));
+	}
+
+	private File getRepositoryCacheFolder() {
+		if (HelmPlugin.isVersion3OrNewer(getVersion())) {
+			return new File(getHelmHomeDirectory(), "cache/helm/repository");
 		}
+		return new File(getHelmHomeDirectory(), "repository/cache");
 	}
 
-	private void addRepos(Set<String> reposToAdd) {
-		reposToAdd.forEach(repoName -> addRepo(repositories.getAt(repoName)));
+	private Map<String, HelmRepository> configuredRepositories() {
+		Map<String, HelmRepository> configuredRepositories = new LinkedHashMap<>();
+		repositories.get().forEach(repo -> configuredRepositories.put(repo.getName(), repo));
+		return configuredRepositories;
 	}
 
-	private void removeRepos(Set<String> reposToRemove) {
-		reposToRemove.forEach(this::removeRepo);
+	private List<HelmRepository> addableRepos(Set<String> reposToAdd, Map<String, HelmRepository> configuredRepositories) {
+		return reposToAdd.stream()
+				.sorted()
+				.map(configuredRepositories::get)
+				.filter(this::isAddable)
+				.collect(Collectors.toList());
+	}
+
+	private void addRepos(Set<String> reposToAdd, Map<String, HelmRepository> configuredRepositories, HelmRepositoriesFile repositoriesFile, String spanId) throws IOException {
+		List<HelmRepository> addableRepos = addableRepos(reposToAdd, configuredRepositories);
+		if (addableRepos.isEmpty()) {
+			return;
+		}
+		// each repository is added to a config of its own, which are merged once all indexes are fetched
+		long start = System.currentTimeMillis();
+		File repositoryConfigs = new File(getTemporaryDir(), "repository-configs");
+		getFileSystemOperations().delete(deleteSpec -> deleteSpec.delete(repositoryConfigs));
+		repositoryConfigs.mkdirs();
+		int slices = Math.min(parallelism, addableRepos.size());
+		try (HelmRepositoryIndexServer indexServer = new HelmRepositoryIndexServer(indexCache.get(), addableRepos, slices)) {
+			WorkQueue workQueue = workerExecutor.noIsolation();
+			for (int slice = 0; slice < slices; slice++) {
+				List<HelmRepository> sliceRepos = new ArrayList<>();
+				for (int i = slice; i < addableRepos.size(); i += slices) {
+					sliceRepos.add(addableRepos.get(i));
+				}
+				workQueue.submit(HelmRepoAddWorkAction.class, parameters -> {
+					parameters.getHelmSpec().set(SimpleHelmSpec.copyOf(this));
+					parameters.getRepositories().set(sliceRepos);
+					parameters.getRepositoryConfigFolder().set(repositoryConfigs);
+					parameters.getIndexUrls().set(indexServer.getUrls());
+					parameters.getMetrics().set(getMetrics());
+					parameters.getTaskPath().set(getPath());
+					parameters.getTracer().set(getTracer());
+					parameters.getParentSpanId().set(spanId);
+				});
+			}
+			workQueue.await();
+		}
+		for (HelmRepository repo : addableRepos) {
+			repositoriesFile.putAll(HelmRepositoriesFile.load(new File(repositoryConfigs, repo.getName() + ".yaml")));
+			repositoriesFile.setUrl(repo.getName(), repo.getUrl());
+		}
+		logger.lifecycle("Added {} helm repositories in {} ms", addableRepos.size(), System.currentTimeMillis() - start);
 	}
 
-	private Map<String, HelmRepository> getKnownHelmRepositories() {
-		HelmPlugin.HelmExecResult execResult = helmExec(getProject(), this, "repo", "list");
-		if (execResult.execResult.getExitValue() == 1
-				&& execResult.output.length >= 1
-				&& String.join(" ", execResult.output).contains("no repositories to show")) {
-			return Collections.emptyMap();
+	private void addReposSequentially(List<HelmRepository> addableRepos, File repoFile) throws IOException {
+		if (addableRepos.isEmpty()) {
+			return;
 		}
-		if (execResult.execResult.getExitValue() != 0) {
-			throw new ExecException("Unexpected failed execution:\n" + String.join("\n", execResult.output));
+		try (HelmRepositoryIndexServer indexServer = new HelmRepositoryIndexServer(indexCache.get(), addableRepos, 1)) {
+			for (HelmRepository repo : addableRepos) {
+				HelmPlugin.helmExecSuccess(helmExecutor(),
+						this,
+						HelmRepoAddWorkAction.repoAddArguments(repo, indexServer.urlOf(repo)).toArray());
+			}
 		}
-		return Arrays.stream(execResult.output)
-				// first line is table header
-				.skip(1L)
-				.map(REPO_PATTERN::matcher)
-				.filter(Matcher::matches)
-				.map(matcher -> new HelmRepository(matcher.group(1), matcher.group(2)))
-				.collect(Collectors.toMap(HelmRepository::getName, Function.identity()));
+		HelmRepositoriesFile repositoriesFile = HelmRepositoriesFile.load(repoFile);
+		addableRepos.forEach(repo -> repositoriesFile.setUrl(repo.getName(), repo.getUrl()));
+		repositoriesFile.write();
 	}
 
-	private void removeRepo(String repoName) {
-		helmExec(getProject(), this, "repo", "remove", repoName);
+	/**
+	 * Puts the index of known repositories into the repository cache of the helm home if it is missing there, taking
+	 * it from the index cache shared by all projects.
+	 */
+	private void placeMissingIndexes(List<HelmRepository> knownRepos) throws IOException {
+		for (HelmRepository repo : knownRepos) {
+			File index = new File(getRepositoryCacheFolder(), repo.getName() + "-index.yaml");
+			if (index.isFile()) {
+				continue;
+			}
+			File cachedIndex = indexCache.get().fetch(repo);
+			Files.createDirectories(index.getParentFile().toPath());
+			// copied rather than linked, helm rewrites the index in place when updating repositories
+			File temporary = File.createTempFile(index.getName(), ".tmp", index.getParentFile());
+			Files.copy(cachedIndex.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Placed cached index of helm repository {} into {}", repo.getName(), index);
+		}
 	}
 
-	private void addRepo(HelmRepository repo) {
+	private boolean isAddable(HelmRepository repo) {
 		if (repo.isAuthenticated() && !HelmPlugin.authenticatedReposSupported(getVersion())) {
-			getProject().getLogger().warn(
+			logger.warn(
 					"Cannot add authenticated repository '{}', authentication supported with '{}', your version: '{}'.",
 					repo.getName(),
 					HelmPlugin.REPO_AUTHENTICATION_VERSION,
 					getVersion());
-			return;
+			return false;
 		}
-		if (repo.isAuthenticated()) {
-			helmExecSuccess(getProject(), this,
-					"repo",
-					"add",
-					repo.getName(),
-					repo.getUrl(),
-					"--username=" + repo.getUser(),
-					"--password=" + repo.getPassword()
-			);
-		} else {
-			helmExecSuccess(getProject(), this,
-					"repo",
-					"add",
-					repo.getName(),
-					repo.getUrl()
-			);
-		}
-	}
-
-	private boolean yamlFilesEqual(File left, File right) {
-		return Objects.equals(
-				HelmPlugin.loadYamlSilently(left, true),
-				HelmPlugin.loadYamlSilently(right, true)
-		);
+		return true;
 	}
 
 	private File getRepositoryYamlFromHelmHome() {
-		File helmHomeDirectory = getHelmHomeDirectory();
-		File repositoriesFile;
-		if (HelmPlugin.isVersion3OrNewer(getVersion())) {
-			repositoriesFile = new File(helmHomeDirectory, "config/helm/repositories.yaml");
-		} else {
-			repositoriesFile = new File(helmHomeDirectory, "repository/repositories.yaml");
-		}
-
+		File repositoriesFile = HelmRepositoriesFile.locate(this);
 		logger.debug("will load repositories.yaml from : " + repositoriesFile.getAbsolutePath());
 		return repositoriesFile;
 	}
@@ -203,13 +280,59 @@ public class HelmRepoSyncTask extends AbstractHelmTask {
 		return repositoryYamlOutput;
 	}
 
-	@Input
-	public NamedDomainObjectContainer<HelmRepository> getRepositories() {
+	@OutputFile
+	public File getRepositoryYamlDigest() {
+		return repositoryYamlDigest;
+	}
+
+	/**
+	 * Cache of repository indexes shared across projects, repositories are added from it.
+	 */
+	@Internal
+	public Property<HelmRepositoryIndexCache> getIndexCache() {
+		return indexCache;
+	}
+
+	@Internal
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of repositories added concurrently, defaults to 4
+	 */
+	public HelmRepoSyncTask setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, found: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	@Internal
+	public ListProperty<HelmRepository> getRepositories() {
 		return repositories;
 	}
 
+	/**
+	 * Fingerprint of the configured repositories, which keeps credentials out of the task history.
+	 */
+	@Input
+	public String getRepositoriesDigest() {
+		Digests digests = Digests.sha256();
+		repositories.get()
+				.stream()
+				.sorted(Comparator.comparing(HelmRepository::getName))
+				.forEach(repo -> digests.add(repo.getName())
+						.add(String.valueOf(repo.getUrl()))
+						.add(String.valueOf(repo.getUser()))
+						.add(String.valueOf(repo.getPassword())));
+		return digests.hex();
+	}
+
 	public HelmRepoSyncTask setRepositories(NamedDomainObjectContainer<HelmRepository> repositories) {
-		this.repositories = repositories;
+		// the container is only read once the task is about to run
+		this.repositories.set(getProject().provider(() -> new ArrayList<>(repositories)));
 		return this;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import com.kiwigrid.k8s.helm.HelmSpec;
+
+/**
+ * The {@code repositories.yaml} of a helm home, read and written without forking helm.
+ * <p>
+ * Entries are kept as read, so attributes unknown to the plugin (e.g. certificates) survive a rewrite.
+ */
+class HelmRepositoriesFile {
+
+	private static final String REPOSITORIES = "repositories";
+
+	private final File file;
+	private final Map<String, Object> content;
+	private boolean changed;
+
+	private HelmRepositoriesFile(File file, Map<String, Object> content) {
+		this.file = file;
+		this.content = content;
+	}
+
+	/**
+	 * @return location of the {@code repositories.yaml} in the helm home of the given spec
+	 */
+	static File locate(HelmSpec helmSpec) {
+		if (HelmPlugin.isVersion3OrNewer(helmSpec.getVersion())) {
+			return new File(helmSpec.getHelmHomeDirectory(), "config/helm/repositories.yaml");
+		}
+		return new File(helmSpec.getHelmHomeDirectory(), "repository/repositories.yaml");
+	}
+
+	@SuppressWarnings("unchecked")
+	static HelmRepositoriesFile load(File file) throws IOException {
+		Map<String, Object> content = null;
+		if (file.isFile()) {
+			try (FileInputStream inputStream = new FileInputStream(file)) {
+				content = HelmPlugin.yaml().loadAs(inputStream, Map.class);
+			}
+		}
+		if (content == null) {
+			content = new LinkedHashMap<>();
+			content.put("apiVersion", "v1");
+		}
+		if (content.get(REPOSITORIES) == null) {
+			content.put(REPOSITORIES, new ArrayList<>());
+		}
+		return new HelmRepositoriesFile(file, content);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Map<String, Object>> entries() {
+		return (List<Map<String, Object>>) content.get(REPOSITORIES);
+	}
+
+	Set<String> getNames() {
+		Set<String> names = new LinkedHashSet<>();
+		entries().forEach(entry -> names.add((String) entry.get("name")));
+		return names;
+	}
+
+	Map<String, Object> get(String name) {
+		return entries().stream().filter(entry -> Objects.equals(entry.get("name"), name)).findFirst().orElse(null);
+	}
+
+	void remove(String name) {
+		changed |= entries().removeIf(entry -> Objects.equals(entry.get("name"), name));
+	}
+
+	/**
+	 * Adds all entries of another file, replacing those of the same name.
+	 */
+	void putAll(HelmRepositoriesFile other) {
+		for (Map<String, Object> entry : other.entries()) {
+			remove((String) entry.get("name"));
+			entries().add(entry);
+			changed = true;
+		}
+	}
+
+	void setCredentials(String name, String user, String password) {
+		Map<String, Object> entry = get(name);
+		if (entry != null && (!Objects.equals(entry.get("username"), user) || !Objects.equals(entry.get("password"),
+				password)))
+		{
+			entry.put("username", user);
+			entry.put("password", password);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Points an entry to another url, e.g. to the one of the repository once helm added it from the index cache.
+	 */
+	void setUrl(String name, String url) {
+		Map<String, Object> entry = get(name);
+		if (entry != null && !Objects.equals(entry.get("url"), url)) {
+			entry.put("url", url);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Writes the file if anything changed since it was loaded.
+	 */
+	void write() throws IOException {
+		if (!changed) {
+			return;
+		}
+		file.getParentFile().mkdirs();
+		try (FileWriter writer = new FileWriter(file)) {
+			HelmPlugin.yaml().dump(content, writer);
+		}
+		changed = false;
+	}
+}
@@ -0,0 +1,172 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.kiwigrid.k8s.helm.HelmRepository;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+
+/**
+ * Digests of the chart archives listed in the {@code index.yaml} of a helm repository.
+ * <p>
+ * The index of a busy repository easily grows to many megabytes, so it is read as a stream of yaml events keeping
+ * nothing but name, version and digest of each entry.
+ */
+class HelmRepositoryIndex {
+
+	private final Map<String, String> digests;
+
+	private HelmRepositoryIndex(Map<String, String> digests) {
+		this.digests = digests;
+	}
+
+	static HelmRepositoryIndex fetch(HelmRepository repository) throws IOException {
+		String url = repository.getUrl();
+		HttpURLConnection connection = (HttpURLConnection) new URL(url + (url.endsWith("/") ? "" : "/") + "index.yaml")
+				.openConnection();
+		HelmChartUploader.authenticate(connection, repository);
+		// a repository nothing was uploaded to yet has no index
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+			return new HelmRepositoryIndex(new HashMap<>());
+		}
+		if (connection.getResponseCode() >= 400) {
+			throw new IOException("Failed to fetch index of "
+					+ repository.getName()
+					+ " from "
+					+ connection.getURL()
+					+ " : Code "
+					+ connection.getResponseCode());
+		}
+		try (InputStream inputStream = connection.getInputStream()) {
+			return read(inputStream);
+		}
+	}
+
+	static HelmRepositoryIndex read(InputStream inputStream) {
+		Map<String, String> digests = new HashMap<>();
+		Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+		Events events = new Events(new Yaml().parse(reader).iterator());
+		while (events.hasNext() && !(events.peek() instanceof MappingStartEvent)) {
+			events.next();
+		}
+		if (!events.hasNext()) {
+			return new HelmRepositoryIndex(digests);
+		}
+		events.next();
+		while (!(events.peek() instanceof CollectionEndEvent)) {
+			String key = events.nextScalar();
+			if ("entries".equals(key) && events.peek() instanceof MappingStartEvent) {
+				readEntries(events, digests);
+			} else {
+				events.skipNode();
+			}
+		}
+		return new HelmRepositoryIndex(digests);
+	}
+
+	// entries: {<chart name>: [{version: ..., digest: ..., ...}, ...], ...}
+	private static void readEntries(Events events, Map<String, String> digests) {
+		events.next();
+		while (!(events.peek() instanceof CollectionEndEvent)) {
+			String chartName = events.nextScalar();
+			if (!(events.peek() instanceof SequenceStartEvent)) {
+				events.skipNode();
+				continue;
+			}
+			events.next();
+			while (!(events.peek() instanceof CollectionEndEvent)) {
+				if (!(events.peek() instanceof MappingStartEvent)) {
+					events.skipNode();
+					continue;
+				}
+				events.next();
+				String version = null;
+				String digest = null;
+				while (!(events.peek() instanceof CollectionEndEvent)) {
+					String key = events.nextScalar();
+					if (("version".equals(key) || "digest".equals(key)) && events.peek() instanceof ScalarEvent) {
+						String value = events.nextScalar();
+						if ("version".equals(key)) {
+							version = value;
+						} else {
+							digest = value;
+						}
+					} else {
+						events.skipNode();
+					}
+				}
+				events.next();
+				if (version != null && digest != null) {
+					digests.put(chartName + "-" + version, digest);
+				}
+			}
+			events.next();
+		}
+		events.next();
+	}
+
+	/**
+	 * @return whether the repository holds the very same archive under the given file name
+	 */
+	boolean contains(String archiveName, String digest) {
+		String key = archiveName.endsWith(".tgz") ? archiveName.substring(0, archiveName.length() - 4) : archiveName;
+		return digest.equalsIgnoreCase(digests.get(key));
+	}
+
+	private static class Events {
+		private final Iterator<Event> iterator;
+		private Event next;
+
+		private Events(Iterator<Event> iterator) {
+			this.iterator = iterator;
+		}
+
+		boolean hasNext() {
+			return next != null || iterator.hasNext();
+		}
+
+		Event peek() {
+			if (next == null) {
+				next = iterator.next();
+			}
+			return next;
+		}
+
+		Event next() {
+			Event event = peek();
+			next = null;
+			return event;
+		}
+
+		String nextScalar() {
+			Event event = next();
+			return event instanceof ScalarEvent ? ((ScalarEvent) event).getValue() : null;
+		}
+
+		void skipNode() {
+			int depth = 0;
+			do {
+				Event event = next();
+				if (event instanceof CollectionStartEvent) {
+					depth++;
+				} else if (event instanceof CollectionEndEvent) {
+					depth--;
+				}
+			} while (depth > 0);
+		}
+	}
+}
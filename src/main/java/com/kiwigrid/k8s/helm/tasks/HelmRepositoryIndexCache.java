@@ -0,0 +1,179 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kiwigrid.k8s.helm.Digests;
+import com.kiwigrid.k8s.helm.HelmRepository;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build wide cache of repository indexes, shared by all projects and builds of a gradle user home.
+ * <p>
+ * An index is fetched at most once per time to live. After that it is revalidated by a conditional request, so an
+ * unchanged index is not transferred again.
+ */
+public abstract class HelmRepositoryIndexCache implements BuildService<HelmRepositoryIndexCache.Parameters>, AutoCloseable {
+
+	public static final String SERVICE_NAME = "helmRepositoryIndexCache";
+	public static final String TTL_PROPERTY = "helmRepositoryIndexTtlMinutes";
+	private static final long DEFAULT_TTL_MINUTES = 10;
+	private static final String INDEX_FILE_NAME = "index.yaml";
+	private static final String METADATA_FILE_NAME = "index.properties";
+	private static final String LOCK_FILE_NAME = "index.lock";
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "lastModified";
+	private static final String FETCHED_AT = "fetchedAt";
+
+	private static final Logger LOGGER = Logging.getLogger(HelmRepositoryIndexCache.class);
+
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger revalidations = new AtomicInteger();
+	private final AtomicInteger downloads = new AtomicInteger();
+
+	public interface Parameters extends BuildServiceParameters {
+		DirectoryProperty getCacheDirectory();
+
+		Property<Long> getTimeToLiveMillis();
+	}
+
+	public static Provider<HelmRepositoryIndexCache> registerIfAbsent(Project project) {
+		Gradle gradle = project.getGradle();
+		Object ttlMinutes = project.findProperty(TTL_PROPERTY);
+		return gradle.getSharedServices().registerIfAbsent(SERVICE_NAME, HelmRepositoryIndexCache.class, spec -> {
+			spec.getParameters()
+					.getCacheDirectory()
+					.set(new File(gradle.getGradleUserHomeDir(), "caches/helm/indexes"));
+			spec.getParameters()
+					.getTimeToLiveMillis()
+					.set(TimeUnit.MINUTES.toMillis(ttlMinutes != null
+							? Long.parseLong(ttlMinutes.toString())
+							: DEFAULT_TTL_MINUTES));
+		});
+	}
+
+	/**
+	 * @return the cached index of the repository, fetched or revalidated if older than the time to live
+	 */
+	public File fetch(HelmRepository repository) throws IOException {
+		// credentials may grant access to different charts of the same url
+		String key = Digests.sha256().add(repository.getUrl()).add(String.valueOf(repository.getUser())).hex();
+		File entryFolder = new File(getParameters().getCacheDirectory().get().getAsFile(), key);
+		Files.createDirectories(entryFolder.toPath());
+		// other builds share the entry, threads of this build are serialized by the monitor as file locks are per jvm
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			try (FileChannel lockChannel = FileChannel.open(new File(entryFolder, LOCK_FILE_NAME).toPath(),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+				 FileLock ignored = lockChannel.lock())
+			{
+				return fetchLocked(repository, entryFolder);
+			}
+		}
+	}
+
+	private File fetchLocked(HelmRepository repository, File entryFolder) throws IOException {
+		File indexFile = new File(entryFolder, INDEX_FILE_NAME);
+		File metadataFile = new File(entryFolder, METADATA_FILE_NAME);
+		Properties metadata = loadMetadata(metadataFile);
+		long fetchedAt = Long.parseLong(metadata.getProperty(FETCHED_AT, "0"));
+		boolean cached = indexFile.isFile();
+		if (cached && System.currentTimeMillis() - fetchedAt < getParameters().getTimeToLiveMillis().get()) {
+			hits.incrementAndGet();
+			return indexFile;
+		}
+		String url = repository.getUrl();
+		HttpURLConnection connection = (HttpURLConnection) new URL(url
+				+ (url.endsWith("/") ? "" : "/")
+				+ INDEX_FILE_NAME).openConnection();
+		HelmChartUploader.authenticate(connection, repository);
+		if (cached && metadata.getProperty(ETAG) != null) {
+			connection.setRequestProperty("If-None-Match", metadata.getProperty(ETAG));
+		}
+		if (cached && metadata.getProperty(LAST_MODIFIED) != null) {
+			connection.setRequestProperty("If-Modified-Since", metadata.getProperty(LAST_MODIFIED));
+		}
+		int responseCode = connection.getResponseCode();
+		if (cached && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			revalidations.incrementAndGet();
+			IOUtils.closeQuietly(connection.getInputStream());
+		} else if (responseCode >= 400) {
+			IOUtils.closeQuietly(connection.getErrorStream());
+			throw new GradleException("Looks like "
+					+ url
+					+ " is not a valid chart repository or cannot be reached: Code "
+					+ responseCode);
+		} else {
+			downloads.incrementAndGet();
+			// other builds may read the entry meanwhile, so download aside and move into place
+			File temporary = File.createTempFile(INDEX_FILE_NAME, ".tmp", entryFolder);
+			try (InputStream inputStream = connection.getInputStream();
+				 OutputStream outputStream = new FileOutputStream(temporary))
+			{
+				IOUtils.copy(inputStream, outputStream);
+			}
+			Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			metadata.clear();
+			if (connection.getHeaderField("ETag") != null) {
+				metadata.setProperty(ETAG, connection.getHeaderField("ETag"));
+			}
+			if (connection.getHeaderField("Last-Modified") != null) {
+				metadata.setProperty(LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+			}
+		}
+		metadata.setProperty(FETCHED_AT, Long.toString(System.currentTimeMillis()));
+		File temporary = File.createTempFile(METADATA_FILE_NAME, ".tmp", entryFolder);
+		try (OutputStream outputStream = new FileOutputStream(temporary)) {
+			metadata.store(outputStream, "helm repository index of " + url);
+		}
+		Files.move(temporary.toPath(), metadataFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return indexFile;
+	}
+
+	private static Properties loadMetadata(File metadataFile) throws IOException {
+		Properties metadata = new Properties();
+		if (metadataFile.isFile()) {
+			try (InputStream inputStream = new FileInputStream(metadataFile)) {
+				metadata.load(inputStream);
+			}
+		}
+		return metadata;
+	}
+
+	@Override
+	public void close() {
+		if (hits.get() + revalidations.get() + downloads.get() > 0) {
+			LOGGER.lifecycle("Helm repository index cache: {} hits, {} revalidated, {} downloaded",
+					hits.get(),
+					revalidations.get(),
+					downloads.get());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.kiwigrid.k8s.helm.HelmRepository;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Serves the indexes of the {@link HelmRepositoryIndexCache} on the loopback interface, so {@code helm repo add}
+ * takes the index of a repository from the cache shared by all projects instead of downloading it again.
+ * <p>
+ * helm records the url it added a repository from, the url of the repository has to be put in its place afterwards.
+ */
+class HelmRepositoryIndexServer implements AutoCloseable {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmRepositoryIndexServer.class);
+	private static final String INDEX_FILE_NAME = "index.yaml";
+
+	private final HelmRepositoryIndexCache indexCache;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, String> urls = new HashMap<>();
+
+	/**
+	 * @param threads number of indexes served concurrently
+	 */
+	HelmRepositoryIndexServer(HelmRepositoryIndexCache indexCache, List<HelmRepository> repositories, int threads) throws IOException {
+		this.indexCache = indexCache;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		InetSocketAddress address = server.getAddress();
+		List<HelmRepository> served = new ArrayList<>(repositories);
+		for (int i = 0; i < served.size(); i++) {
+			HelmRepository repository = served.get(i);
+			// numbered paths, so repository names need no escaping
+			String path = "/" + i + "/";
+			server.createContext(path, exchange -> serve(exchange, repository));
+			urls.put(repository.getName(), "http://" + address.getHostString() + ":" + address.getPort() + path);
+		}
+		server.start();
+	}
+
+	/**
+	 * @return the url to add the repository from
+	 */
+	String urlOf(HelmRepository repository) {
+		return urls.get(repository.getName());
+	}
+
+	Map<String, String> getUrls() {
+		return new HashMap<>(urls);
+	}
+
+	private void serve(HttpExchange exchange, HelmRepository repository) throws IOException {
+		try (InputStream ignored = exchange.getRequestBody()) {
+			if (!exchange.getRequestURI().getPath().endsWith("/" + INDEX_FILE_NAME)) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+				return;
+			}
+			// opened before the length is taken, the cache may move a newer index into place meanwhile
+			try (FileChannel index = FileChannel.open(indexCache.fetch(repository).toPath())) {
+				exchange.getResponseHeaders().set("Content-Type", "application/x-yaml");
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, index.size());
+				try (OutputStream body = exchange.getResponseBody()) {
+					IOUtils.copy(Channels.newInputStream(index), body);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// helm only gets to see the loopback url, so the actual cause is logged here
+			LOGGER.error("Unable to fetch the index of helm repository {} from {}",
+					repository.getName(),
+					repository.getUrl(),
+					e);
+			if (exchange.getResponseCode() == -1) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_GATEWAY, -1);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
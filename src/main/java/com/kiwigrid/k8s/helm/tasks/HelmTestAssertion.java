@@ -0,0 +1,96 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import com.jayway.jsonpath.JsonPath;
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * A single assertion of a structured test, evaluated against a rendered manifest file.
+ */
+abstract class HelmTestAssertion implements Serializable {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmTestAssertion.class);
+
+	final String file;
+	final String path;
+	// not serializable, compiled once per worker on first use
+	private transient JsonPath compiledPath;
+
+	private HelmTestAssertion(String file, String path) {
+		this.file = file;
+		this.path = path;
+	}
+
+	static HelmTestAssertion eq(String file, String path, Object expectedValue) {
+		return new EqAssertion(file, path, expectedValue);
+	}
+
+	static HelmTestAssertion match(String file, String path, String pattern) {
+		return new MatchAssertion(file, path, pattern);
+	}
+
+	/**
+	 * @param documents all yaml documents of the rendered file, as loaded by {@link HelmPlugin#loadYamlsSilently(File)}
+	 */
+	void execute(List<Object> documents) {
+		if (compiledPath == null) {
+			compiledPath = JsonPath.compile(path);
+		}
+		verify(compiledPath.read(documents));
+	}
+
+	abstract void verify(Object fragment);
+
+	private static class EqAssertion extends HelmTestAssertion {
+		private final Object expectedValue;
+
+		private EqAssertion(String file, String path, Object expectedValue) {
+			super(file, path);
+			this.expectedValue = expectedValue;
+		}
+
+		@Override
+		void verify(Object fragment) {
+			if (!Objects.equals(fragment, expectedValue)) {
+				throw new AssertionError("File "
+						+ file
+						+ " at path '"
+						+ path
+						+ "' does not contain a document matching '"
+						+ expectedValue
+						+ "'");
+			}
+		}
+	}
+
+	private static class MatchAssertion extends HelmTestAssertion {
+		private final Pattern pattern;
+
+		private MatchAssertion(String file, String path, String pattern) {
+			super(file, path);
+			this.pattern = Pattern.compile(pattern);
+		}
+
+		@Override
+		void verify(Object fragment) {
+			String fragmentString = HelmPlugin.yaml().dump(fragment);
+			LOGGER.debug("dumped JSON-PATH {} resolved to '{}'", path, fragmentString);
+			if (!pattern.matcher(fragmentString).matches()) {
+				throw new AssertionError("File "
+						+ file
+						+ " does not structure documents matching regular expression '"
+						+ pattern.pattern()
+						+ "' at path '"
+						+ path
+						+ "'.");
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+
+public class HelmTestCase implements Serializable {
+	final boolean succeed;
+	final String name;
+	final String title;
+	final File valueFile;
+	final List<HelmTestAssertion> assertions;
+
+	HelmTestCase(boolean succeed, String name, String title, File valueFile, List<HelmTestAssertion> assertions) {
+		this.succeed = succeed;
+		this.name = name;
+		this.title = title;
+		this.valueFile = valueFile;
+		this.assertions = assertions;
+	}
+}
@@ -0,0 +1,95 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.kiwigrid.k8s.helm.HelmPlugin;
+
+/**
+ * Outcome of a single {@link HelmTestCase}, handed from the worker running it back to the test task.
+ */
+class HelmTestCaseResult implements Serializable {
+
+	static final String RESULT_FILE_NAME = "helm-test-result.ser";
+
+	final String name;
+	final String title;
+	private final List<Failure> failures = new ArrayList<>();
+	private final StringBuilder output = new StringBuilder();
+	private long durationMillis;
+
+	HelmTestCaseResult(String name, String title) {
+		this.name = name;
+		this.title = title;
+	}
+
+	/**
+	 * Records the output of a helm command run for this test case.
+	 */
+	void record(HelmPlugin.HelmExecResult execResult) {
+		for (String line : execResult.output) {
+			output.append(line).append('\n');
+		}
+	}
+
+	String getOutput() {
+		return output.toString();
+	}
+
+	void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	long getDurationMillis() {
+		return durationMillis;
+	}
+
+	void fail(String message, String details, AssertionError error) {
+		failures.add(new Failure(message, details, error));
+	}
+
+	List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	void writeTo(File file) {
+		try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(file))) {
+			outputStream.writeObject(this);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static HelmTestCaseResult readFrom(File file) {
+		try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file))) {
+			return (HelmTestCaseResult) inputStream.readObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static class Failure implements Serializable {
+		/** message attribute of the junit failure element */
+		final String message;
+		/** body of the junit failure element, may be {@code null} */
+		final String details;
+		final AssertionError error;
+
+		private Failure(String message, String details, AssertionError error) {
+			this.message = message;
+			this.details = details;
+			this.error = error;
+		}
+	}
+}
@@ -4,22 +4,24 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
-import com.jayway.jsonpath.JsonPath;
 import com.kiwigrid.k8s.helm.HelmPlugin;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import com.kiwigrid.k8s.helm.SimpleHelmSpec;
 import javax.inject.Inject;
-import org.gradle.api.Action;
-import org.gradle.api.GradleException;
 import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.Directory;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.Provider;
@@ -27,31 +29,51 @@ import org.gradle.api.tasks.*;
 import org.gradle.api.tasks.options.Option;
 import org.gradle.internal.exceptions.DefaultMultiCauseException;
 import org.gradle.language.base.plugins.LifecycleBasePlugin;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
+@CacheableTask
 @SuppressWarnings("UnstableApiUsage")
-public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
+public abstract class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 
 	public static final String VALUES_OPTION = "--values";
-	public static final String FAILURE_END_TAG = "</failure>";
 	private DirectoryProperty tests;
 
 	private final ConfigurableFileCollection charts;
 
+	private final List<ChartTests> chartTests = new ArrayList<>();
+
 	private final File testOutputs;
 
+	private final File renderCacheFolder;
+
 	private String testPattern = ".*";
 
 	private boolean ignoreFailures;
 
+	private boolean writeManifests;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private final ObjectFactory objectFactory;
+
+	private final WorkerExecutor workerExecutor;
+
 	@Inject
-	public HelmTestTask(ObjectFactory objectFactory) {
+	public HelmTestTask(ObjectFactory objectFactory, WorkerExecutor workerExecutor) {
+		this.objectFactory = objectFactory;
+		this.workerExecutor = workerExecutor;
 		setDescription("Tests Helm Chart via \"helm lint\" and assert definitions");
 		setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
-		onlyIf(element -> tests.getAsFile().get().exists());
+		onlyIf(element -> tests.getAsFile().get().exists()
+				|| chartTests.stream().anyMatch(testsOfChart -> testsOfChart.getTestsFolder().exists()));
 		testOutputs = new File(getProject().getBuildDir(), "helm/test");
+		renderCacheFolder = new File(getProject().getBuildDir(), "helm/test-cache");
 		tests = objectFactory.directoryProperty();
 		tests.convention(getProject().provider(this::getTestSourceDir));
 		charts = objectFactory.fileCollection();
+		// folders the charts were built into, the plugin wires in the outputs of its chart build tasks instead
+		charts.from(getProject().provider(this::getOutputDirectory));
 	}
 
 	private Directory getTestSourceDir() {
@@ -60,21 +82,34 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 
 	@TaskAction
 	public void runTests() throws IOException {
-		File[] chartFolders = getOutputDirectory().listFiles(File::isDirectory);
-		if (chartFolders == null || chartFolders.length == 0) {
-			return;
+		try (HelmTracer.Span span = startSpan("helm chart test")) {
+			testCharts(span.getSpanId());
 		}
-		if (chartFolders.length > 1) {
-			String charts = Arrays
-					.stream(chartFolders)
-					.map(File::getName)
-					.map(s -> String.format("'%s'", s))
-					.collect(Collectors.joining(", "));
-			throw new GradleException(String.format(
-					"The output folder '%s' contains more than one helm chart.\n The list of folders with charts: %s",
-					getOutputDirectory().getAbsolutePath(),
-					charts
-			));
+	}
+
+	private void testCharts(String spanId) throws IOException {
+		// test folders by chart folder
+		Map<File, File> chartFolders = new TreeMap<>(Comparator.comparing(File::getName)
+				.thenComparing(File::getAbsolutePath));
+		List<File> sharedChartFolders = chartFoldersIn(charts);
+		for (File chartFolder : sharedChartFolders) {
+			// a single chart is tested by all tests, several charts by the tests in the folder named like them
+			chartFolders.put(chartFolder, sharedChartFolders.size() == 1
+					? tests.get().getAsFile()
+					: new File(tests.get().getAsFile(), chartFolder.getName()));
+		}
+		for (ChartTests testsOfChart : chartTests) {
+			File testsFolder = testsOfChart.getTestsFolder();
+			if (!testsFolder.isDirectory() && !testCasesIn(tests.get().getAsFile(), false).isEmpty()) {
+				getLogger().warn("No tests of chart {} found in {}, the tests in {} are not run for declared charts",
+						testsOfChart.getName(),
+						testsFolder,
+						tests.get().getAsFile());
+			}
+			chartFoldersIn(testsOfChart.getCharts()).forEach(chartFolder -> chartFolders.put(chartFolder, testsFolder));
+		}
+		if (chartFolders.isEmpty()) {
+			return;
 		}
 		boolean lintWithValuesSupported = HelmPlugin.lintWithValuesSupported(getVersion());
 		if (!lintWithValuesSupported) {
@@ -90,23 +125,27 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 					HelmPlugin.TEMPLATE_WITH_OUTPUT_VERSION,
 					this.getVersion());
 		}
-		String commonTestPathPrefix = tests.get().getAsFile().getAbsolutePath() + File.separator;
-		List<HelmTestCase> testCases = tests
-				.getAsFileTree()
-				.filter(element -> element.getName().endsWith(".yml") || element.getName().endsWith(".yaml"))
-				.getFiles()
-				.stream()
-				.map(file -> fromYamlFile(commonTestPathPrefix, file))
-				.collect(Collectors.toList());
-		List<AssertionError> failures = new ArrayList<>();
-		File chartFolder = chartFolders[0];
+		// test cases of all charts share the work queue, the task thread lints with default values meanwhile
+		WorkQueue workQueue = workerExecutor.noIsolation();
+		List<ChartTestRun> chartTestRuns = new ArrayList<>();
+		for (Map.Entry<File, File> chartFolder : chartFolders.entrySet()) {
+			chartTestRuns.add(submitTestsForChart(workQueue,
+					spanId,
+					lintWithValuesSupported,
+					templateWithOutputSupported,
+					chartFolder.getKey(),
+					testCasesIn(chartFolder.getValue(), true)));
+		}
+		for (ChartTestRun chartTestRun : chartTestRuns) {
+			chartTestRun.defaultLintResult = lintWithDefaultValues(chartTestRun.chartFolder);
+		}
+		// the task gives up its worker lease while waiting, so the test cases run even with a single worker
+		workQueue.await();
 
-		runTestsForChart(lintWithValuesSupported,
-				templateWithOutputSupported,
-				chartFolder,
-				testCases,
-				failures
-		);
+		List<AssertionError> failures = new ArrayList<>();
+		for (ChartTestRun chartTestRun : chartTestRuns) {
+			reportTestsForChart(chartTestRun, failures);
+		}
 
 		if (!failures.isEmpty()) {
 			Logger logger = getLogger();
@@ -118,179 +157,139 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 		}
 	}
 
-	private void runTestsForChart(boolean lintWithValuesSupported, boolean templateWithOutputSupported, File chartFolder, List<HelmTestCase> testCases, List<AssertionError> failures) throws IOException {
-		File chartTestOutputFolder = new File(testOutputs, chartFolder.getName());
-		File testJunitReportFile = new File(chartTestOutputFolder, "helm-junit-report.xml");
-		getLogger().info("Writing junit xml to {}", testJunitReportFile.getAbsolutePath());
-		StringBuilder junitReport = new StringBuilder();
-		junitReport.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		junitReport.append("<testsuites>");
-
-		junitReport
-				.append("<testsuite name=\"")
-				.append(chartFolder.getName())
-				.append("\" tests=\"")
-				.append(testCases.size() + 1)
-				.append("\">");
+	private static List<File> chartFoldersIn(FileCollection chartsFolders) {
+		List<File> chartFolders = new ArrayList<>();
+		for (File chartsFolder : chartsFolders.getFiles()) {
+			File[] folders = chartsFolder.listFiles(File::isDirectory);
+			if (folders != null) {
+				chartFolders.addAll(Arrays.asList(folders));
+			}
+		}
+		return chartFolders;
+	}
 
-		getLogger().info("Linting {} with default values...", chartFolder.getName());
-		junitReport.append("<testcase name=\"defaultValueLinting\" classname=\"HelmPlugin\">");
-		HelmPlugin.HelmExecResult lintExecResult = HelmPlugin.helmExec(getProject(),
-				this,
-				"lint",
-				chartFolder.getAbsolutePath());
-		if (lintExecResult.execResult.getExitValue() != 0) {
-			junitReport
-					.append("<failure message\"Linting with default values failed\">")
-					.append(String.join("\n", lintExecResult.output))
-					.append(FAILURE_END_TAG);
-			failures.add(new AssertionError("Linting with default values failed"));
+	/**
+	 * @param recursive whether test files in sub folders are included
+	 */
+	private List<HelmTestCase> testCasesIn(File testsFolder, boolean recursive) {
+		if (!testsFolder.isDirectory()) {
+			getLogger().info("No tests found in {}", testsFolder);
+			return Collections.emptyList();
 		}
-		junitReport.append("</testcase>");
-		getProject().delete(chartTestOutputFolder);
-		Pattern pattern = Pattern.compile(testPattern);
-		testCases
+		String commonTestPathPrefix = testsFolder.getAbsolutePath() + File.separator;
+		return objectFactory.fileTree()
+				.from(testsFolder)
+				.filter(element -> element.getName().endsWith(".yml") || element.getName().endsWith(".yaml"))
+				.filter(element -> recursive || testsFolder.equals(element.getParentFile()))
+				.getFiles()
 				.stream()
-				.filter(helmTestCase -> {
-					boolean match = pattern.matcher(helmTestCase.name).matches();
-					if (!match) {
-						getLogger().info("Skipping '{}', not matching '{}'", helmTestCase.name, testPattern);
-						junitReport
-								.append("<testcase name=\"")
-								.append(helmTestCase.title)
-								.append("\"")
-								.append(" classname=\"")
-								.append(helmTestCase.name)
-								.append("\"><skipped message=\"name does not match pattern")
-								.append(testPattern)
-								.append("\" /></testcase>");
-					}
-					return match;
-				})
-				.forEach(helmTestCase -> runSingleTestCase(
-						helmTestCase,
-						lintWithValuesSupported,
-						templateWithOutputSupported,
-						chartFolder,
-						chartTestOutputFolder,
-						junitReport,
-						failures));
+				.map(file -> fromYamlFile(commonTestPathPrefix, file))
+				.sorted(Comparator.comparing(helmTestCase -> helmTestCase.name))
+				.collect(Collectors.toList());
+	}
 
-		junitReport.append("</testsuite>");
-		junitReport.append("</testsuites>");
+	private ChartTestRun submitTestsForChart(WorkQueue workQueue, String spanId, boolean lintWithValuesSupported, boolean templateWithOutputSupported, File chartFolder, List<HelmTestCase> testCases) throws IOException {
+		ChartTestRun chartTestRun = new ChartTestRun(chartFolder, new File(testOutputs, chartFolder.getName()));
+		File chartTestOutputFolder = chartTestRun.outputFolder;
+		getFileSystemOperations().delete(deleteSpec -> deleteSpec.delete(chartTestOutputFolder));
+		chartTestOutputFolder.mkdirs();
+		Pattern pattern = Pattern.compile(testPattern);
+		testCases.forEach(helmTestCase -> {
+			if (pattern.matcher(helmTestCase.name).matches()) {
+				chartTestRun.selectedTestCases.add(helmTestCase);
+			} else {
+				getLogger().info("Skipping '{}', not matching '{}'", helmTestCase.name, testPattern);
+				chartTestRun.skippedTestCases.add(helmTestCase);
+			}
+		});
+		List<HelmTestCase> selectedTestCases = chartTestRun.selectedTestCases;
 
-		try (PrintWriter writer = new PrintWriter(new FileWriter(testJunitReportFile))) {
-			writer.write(junitReport.toString());
+		String chartDigest = HelmRenderCache.chartDigest(chartFolder);
+		for (HelmTestCase helmTestCase : selectedTestCases) {
+			chartTestRun.renderCacheKeys.put(helmTestCase.name,
+					HelmRenderCache.cacheKey(chartDigest, helmTestCase.valueFile, getVersion()));
 		}
-		getLogger().debug("Test results:\n{}", junitReport);
-	}
-
-	private void runSingleTestCase(HelmTestCase helmTestCase, boolean lintWithValuesSupported, boolean templateWithOutputSupported, File chartFolder, File chartTestOutputFolder, StringBuilder junitReport, List<AssertionError> failures) {
-		getLogger().info("Running test case {}: {}", helmTestCase.name, helmTestCase.title);
-		junitReport
-				.append("<testcase name=\"")
-				.append(helmTestCase.title)
-				.append("\"")
-				.append(" classname=\"")
-				.append(helmTestCase.name)
-				.append("\">");
-
-		if (helmTestCase.succeed) {
-			if (lintWithValuesSupported) {
-				HelmPlugin.HelmExecResult lintExecResult = helmLint(chartFolder, helmTestCase);
-				if (lintExecResult.failed()) {
-					junitReport
-							.append("<failure message=\"Linting with test values failed\">")
-							.append(String.join("\n", lintExecResult.output))
-							.append(FAILURE_END_TAG);
-					failures.add(new AssertionError("Linting with test values failed"));
-				}
-			}
-			if (templateWithOutputSupported) {
-				getLogger().debug("Templating and asserting ...");
-				File testCaseOutputFolder = new File(chartTestOutputFolder, helmTestCase.name);
-				testCaseOutputFolder.mkdirs();
-				HelmPlugin.HelmExecResult helmExecResult = helmTemplate(chartFolder,
-						helmTestCase,
-						testCaseOutputFolder
-				);
-				if (helmExecResult.succeeded()) {
-					runAssertions(helmTestCase, testCaseOutputFolder, chartFolder.getName(), junitReport, failures);
-				} else {
-					junitReport.append("<failure message=\"failed to template chart\">")
-							.append(String.join("\n", helmExecResult.output))
-							.append(FAILURE_END_TAG);
-					failures.add(new AssertionError("failed to template chart"));
-				}
+
+		int slices = Math.max(1, Math.min(parallelism, selectedTestCases.size()));
+		for (int slice = 0; slice < slices; slice++) {
+			List<HelmTestCase> sliceTestCases = new ArrayList<>();
+			for (int i = slice; i < selectedTestCases.size(); i += slices) {
+				sliceTestCases.add(selectedTestCases.get(i));
 			}
-		} else {
-			HelmPlugin.HelmExecResult template = HelmPlugin.helmExec(
-					getProject(),
-					this,
-					"template",
-					VALUES_OPTION,
-					helmTestCase.valueFile.getAbsolutePath(),
-					chartFolder.getAbsolutePath());
-			if (template.succeeded()) {
-				junitReport.append("<failure message=\"failed to fail template\">")
-						.append("Templating should fail, but succeeded.")
-						.append(FAILURE_END_TAG);
-				failures.add(new AssertionError("Helm template for test '"
-						+ helmTestCase.name
-						+ "' succeeded when it shall not"));
+			if (sliceTestCases.isEmpty()) {
+				continue;
 			}
+			workQueue.submit(HelmTestWorkAction.class, parameters -> {
+				parameters.getHelmSpec().set(SimpleHelmSpec.copyOf(this));
+				parameters.getTestCases().set(sliceTestCases);
+				parameters.getChartFolder().set(chartFolder);
+				parameters.getChartTestOutputFolder().set(chartTestOutputFolder);
+				parameters.getLintWithValuesSupported().set(lintWithValuesSupported);
+				parameters.getTemplateWithOutputSupported().set(templateWithOutputSupported);
+				parameters.getTemplateShowOnlySupported().set(HelmPlugin.templateShowOnlySupported(getVersion()));
+				parameters.getWriteManifests().set(writeManifests);
+				parameters.getMetrics().set(getMetrics());
+				parameters.getTaskPath().set(getPath());
+				parameters.getTracer().set(getTracer());
+				parameters.getParentSpanId().set(spanId);
+				parameters.getRenderCacheFolder().set(chartTestRun.renderCacheFolder(renderCacheFolder));
+				parameters.getRenderCacheKeys().set(chartTestRun.renderCacheKeys);
+			});
 		}
-		junitReport.append("</testcase>");
-	}
-
-	private void runAssertions(HelmTestCase helmTestCase, File testCaseOutputFolder, String chartName, StringBuilder junitReport, List<AssertionError> failures) {
-		getLogger().info("running assertions...");
-		helmTestCase.assertions.forEach(helmTestAssertion -> {
-			File input = new File(testCaseOutputFolder, chartName + File.separator + helmTestAssertion.file);
-			if (!input.exists() || !input.isFile()) {
-				junitReport.append("<failure message=\"failed to find file ")
-						.append(input.getAbsolutePath())
-						.append("\" />");
-				failures.add(new AssertionError("Test '"
-						+ helmTestCase.title
-						+ "' requires file  "
-						+ input.getAbsolutePath()
-						+ " which does not exist or is no file."));
-				return;
-			}
-			try {
-				helmTestAssertion.statement.execute(input);
-			} catch (AssertionError e) {
-				junitReport.append("<failure message=\"")
-						.append(e.getMessage())
-						.append("\" />");
-				failures.add(e);
-			}
-		});
+		return chartTestRun;
 	}
 
-	private HelmPlugin.HelmExecResult helmTemplate(File chartFolder, HelmTestCase helmTestCase, File testCaseOutputFolder) {
-		return HelmPlugin.helmExec(
-				getProject(),
-				this,
-				"template",
-				VALUES_OPTION,
-				helmTestCase.valueFile.getAbsolutePath(),
-				"--output-dir",
-				testCaseOutputFolder.getAbsolutePath(),
+	private HelmTestCaseResult lintWithDefaultValues(File chartFolder) {
+		getLogger().info("Linting {} with default values...", chartFolder.getName());
+		long start = System.currentTimeMillis();
+		HelmTestCaseResult defaultLintResult = new HelmTestCaseResult("HelmPlugin", "defaultValueLinting");
+		HelmPlugin.HelmExecResult lintExecResult = helmExecutor().exec(this,
+				"lint",
 				chartFolder.getAbsolutePath());
+		defaultLintResult.record(lintExecResult);
+		if (lintExecResult.execResult.getExitValue() != 0) {
+			defaultLintResult.fail("Linting with default values failed",
+					String.join("\n", lintExecResult.output),
+					new AssertionError("Linting with default values failed"));
+		}
+		defaultLintResult.setDurationMillis(System.currentTimeMillis() - start);
+		return defaultLintResult;
 	}
 
-	private HelmPlugin.HelmExecResult helmLint(File chartFolder, HelmTestCase helmTestCase) {
-		getLogger().debug("Linting ...");
-		return HelmPlugin.helmExec(
-				getProject(),
-				this,
-				"lint",
-				VALUES_OPTION,
-				helmTestCase.valueFile.getAbsolutePath(),
-				chartFolder.getAbsolutePath());
+	private void reportTestsForChart(ChartTestRun chartTestRun, List<AssertionError> failures) throws IOException {
+		File testJunitReportFile = new File(chartTestRun.outputFolder, "helm-junit-report.xml");
+		getLogger().info("Writing junit xml to {}", testJunitReportFile.getAbsolutePath());
+		try (HelmJunitReportWriter junitReport = new HelmJunitReportWriter(testJunitReportFile,
+				chartTestRun.chartFolder.getName(),
+				chartTestRun.selectedTestCases.size() + chartTestRun.skippedTestCases.size() + 1))
+		{
+			reportTestCaseResult(chartTestRun.chartFolder.getName(), chartTestRun.defaultLintResult, junitReport, failures);
+			for (HelmTestCase helmTestCase : chartTestRun.skippedTestCases) {
+				junitReport.skippedTestCase(helmTestCase.name,
+						helmTestCase.title,
+						"name does not match pattern" + testPattern);
+			}
+			// results are read one at a time in test case order, so the report is deterministic and memory bounded
+			for (HelmTestCase helmTestCase : chartTestRun.selectedTestCases) {
+				File resultFile = new File(new File(chartTestRun.outputFolder, helmTestCase.name),
+						HelmTestCaseResult.RESULT_FILE_NAME);
+				reportTestCaseResult(chartTestRun.chartFolder.getName(),
+						HelmTestCaseResult.readFrom(resultFile),
+						junitReport,
+						failures);
+			}
+		}
+		if (chartTestRun.skippedTestCases.isEmpty()) {
+			// entries of a partial run may still be useful for the next full run
+			new HelmRenderCache(chartTestRun.renderCacheFolder(renderCacheFolder))
+					.retainOnly(new HashSet<>(chartTestRun.renderCacheKeys.values()));
+		}
+	}
 
+	private void reportTestCaseResult(String chartName, HelmTestCaseResult result, HelmJunitReportWriter junitReport, List<AssertionError> failures) throws IOException {
+		junitReport.testCase(result);
+		getMetrics().get().recordTestCase(getPath(), chartName, result.name, result.getDurationMillis());
+		result.getFailures().forEach(failure -> failures.add(failure.error));
 	}
 
 	@Input
@@ -304,7 +303,40 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 		return this;
 	}
 
-	@InputDirectory
+	@Input
+	public boolean getWriteManifests() {
+		return writeManifests;
+	}
+
+	/**
+	 * @param writeManifests whether the rendered manifests of passing test cases are written to the test outputs
+	 * too, those of failing test cases always are
+	 */
+	@Option(option = "write-manifests", description = "writes the rendered manifests of all test cases.")
+	public HelmTestTask setWriteManifests(boolean writeManifests) {
+		this.writeManifests = writeManifests;
+		return this;
+	}
+
+	@Internal
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of test cases run concurrently, defaults to the number of available processors
+	 */
+	public HelmTestTask setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, found: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	// charts declared in the helm extension may keep their tests elsewhere, so this folder may be missing
+	@InputFiles
+	@PathSensitive(PathSensitivity.RELATIVE)
 	public DirectoryProperty getTests() {
 		return tests;
 	}
@@ -329,44 +361,96 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 		return testOutputs;
 	}
 
+	@Internal
+	public File getRenderCacheFolder() {
+		return renderCacheFolder;
+	}
+
 	@InputFiles
+	@PathSensitive(PathSensitivity.RELATIVE)
 	public ConfigurableFileCollection getCharts() {
 		return charts;
 	}
 
+	/**
+	 * Tests charts built into the given folders with the tests of the given folder, no matter how many charts are
+	 * tested.
+	 */
+	public HelmTestTask chartTests(String name, FileCollection charts, File tests) {
+		chartTests.add(new ChartTests(name, charts, objectFactory.fileCollection().from(tests)));
+		return this;
+	}
+
+	@Nested
+	public List<ChartTests> getChartTests() {
+		return chartTests;
+	}
+
 	@Override
 	public void setIgnoreFailures(boolean ignoreFailures) {
 		this.ignoreFailures = ignoreFailures;
 	}
 
+	@Input
 	@Override
 	public boolean getIgnoreFailures() {
 		return ignoreFailures;
 	}
 
-	private static class HelmTestCase {
-		private final boolean succeed;
+	/**
+	 * Charts with tests of their own, e.g. those declared in the helm extension.
+	 */
+	public static class ChartTests {
 		private final String name;
-		private final String title;
-		private final File valueFile;
-		private final List<HelmTestAssertion> assertions;
+		private final FileCollection charts;
+		private final FileCollection tests;
 
-		private HelmTestCase(boolean succeed, String name, String title, File valueFile, List<HelmTestAssertion> assertions) {
-			this.succeed = succeed;
+		ChartTests(String name, FileCollection charts, FileCollection tests) {
 			this.name = name;
-			this.title = title;
-			this.valueFile = valueFile;
-			this.assertions = assertions;
+			this.charts = charts;
+			this.tests = tests;
+		}
+
+		@Input
+		public String getName() {
+			return name;
+		}
+
+		@InputFiles
+		@PathSensitive(PathSensitivity.RELATIVE)
+		public FileCollection getCharts() {
+			return charts;
+		}
+
+		@InputFiles
+		@PathSensitive(PathSensitivity.RELATIVE)
+		public FileCollection getTests() {
+			return tests;
+		}
+
+		File getTestsFolder() {
+			return tests.getSingleFile();
 		}
 	}
 
-	private static class HelmTestAssertion {
-		private final String file;
-		private final Action<File> statement;
+	/**
+	 * Test cases of one chart from submission to the work queue until reported.
+	 */
+	private static class ChartTestRun {
+		final File chartFolder;
+		final File outputFolder;
+		final List<HelmTestCase> selectedTestCases = new ArrayList<>();
+		final List<HelmTestCase> skippedTestCases = new ArrayList<>();
+		final Map<String, String> renderCacheKeys = new HashMap<>();
+		HelmTestCaseResult defaultLintResult;
+
+		ChartTestRun(File chartFolder, File outputFolder) {
+			this.chartFolder = chartFolder;
+			this.outputFolder = outputFolder;
+		}
 
-		private HelmTestAssertion(String file, Action<File> statement) {
-			this.file = file;
-			this.statement = statement;
+		File renderCacheFolder(File renderCacheRoot) {
+			return new File(renderCacheRoot, chartFolder.getName());
 		}
 	}
 
@@ -410,7 +494,7 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 		boolean succeed = Optional.ofNullable((Boolean) test.get("succeed")).orElse(true);
 		Object values = test.get("values");
 		File tempFile = File.createTempFile("values_extract", ".yaml", getTemporaryDir());
-		HelmPlugin.YAML.dump(values, new FileWriter(tempFile));
+		HelmPlugin.yaml().dump(values, new FileWriter(tempFile));
 		List<Object> assertions = Optional.ofNullable((List<Object>) test.get("assert"))
 				.orElse(Collections.emptyList());
 		List<HelmTestAssertion> asserts = assertions.stream()
@@ -435,41 +519,12 @@ public class HelmTestTask extends AbstractHelmTask implements VerificationTask {
 	private HelmTestAssertion eqAssertionFrom(String fileName, Map test) {
 		String path = (String) test.get("path");
 		Object expectedValue = test.get("value");
-		return new HelmTestAssertion(fileName, file -> {
-			List<Object> documents = HelmPlugin.loadYamlsSilently(file);
-			getLogger().debug("Loaded {}: {}", file, documents);
-			Object fragment = JsonPath.read(documents, path);
-			if (!Objects.equals(fragment, expectedValue)) {
-				throw new AssertionError("File "
-						+ fileName
-						+ " at path '"
-						+ path
-						+ "' does not contain a document matching '"
-						+ expectedValue
-						+ "'");
-			}
-		});
+		return HelmTestAssertion.eq(fileName, path, expectedValue);
 	}
 
 	private HelmTestAssertion matchAssertionFrom(String fileName, Map test) {
 		String path = (String) test.get("path");
 		String pattern = (String) test.get("pattern");
-		Pattern compiledPattern = Pattern.compile(pattern);
-		return new HelmTestAssertion(fileName, file -> {
-			List<Object> documents = HelmPlugin.loadYamlsSilently(file);
-			getLogger().debug("Loaded {}: {}", file, documents);
-			Object fragment = JsonPath.read(documents, path);
-			String fragmentString = HelmPlugin.YAML.dump(fragment);
-			getLogger().debug("dumped JSON-PATH {} resolved to '{}'", path, fragmentString);
-			if (!compiledPattern.matcher(fragmentString).matches()) {
-				throw new AssertionError("File "
-						+ fileName
-						+ " does not structure documents matching regular expression '"
-						+ pattern
-						+ "' at path '"
-						+ path
-						+ "'.");
-			}
-		});
+		return HelmTestAssertion.match(fileName, path, pattern);
 	}
 }
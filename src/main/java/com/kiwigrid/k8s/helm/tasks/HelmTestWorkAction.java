@@ -0,0 +1,282 @@
+package com.kiwigrid.k8s.helm.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import com.kiwigrid.k8s.helm.Digests;
+import com.kiwigrid.k8s.helm.HelmExecutor;
+import com.kiwigrid.k8s.helm.HelmMetrics;
+import com.kiwigrid.k8s.helm.HelmOutput;
+import com.kiwigrid.k8s.helm.HelmPlugin;
+import com.kiwigrid.k8s.helm.HelmSpec;
+import com.kiwigrid.k8s.helm.HelmTracer;
+import javax.inject.Inject;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.process.ExecOperations;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Runs a slice of the test cases of a chart and stores each outcome as {@link HelmTestCaseResult} next to the
+ * rendered manifests of the test case if requested or the test case failed.
+ */
+public abstract class HelmTestWorkAction implements WorkAction<HelmTestWorkAction.Parameters> {
+
+	private static final Logger LOGGER = Logging.getLogger(HelmTestWorkAction.class);
+
+	public interface Parameters extends WorkParameters {
+		Property<HelmSpec> getHelmSpec();
+
+		ListProperty<HelmTestCase> getTestCases();
+
+		DirectoryProperty getChartFolder();
+
+		DirectoryProperty getChartTestOutputFolder();
+
+		Property<Boolean> getLintWithValuesSupported();
+
+		Property<Boolean> getTemplateWithOutputSupported();
+
+		Property<Boolean> getTemplateShowOnlySupported();
+
+		/**
+		 * whether to write the rendered manifests of passing test cases too, those of failing ones are always written
+		 */
+		Property<Boolean> getWriteManifests();
+
+		DirectoryProperty getRenderCacheFolder();
+
+		/**
+		 * render cache keys by test case name
+		 */
+		MapProperty<String, String> getRenderCacheKeys();
+
+		Property<HelmMetrics> getMetrics();
+
+		Property<String> getTaskPath();
+
+		Property<HelmTracer> getTracer();
+
+		/**
+		 * span of the task the test cases are traced as children of
+		 */
+		Property<String> getParentSpanId();
+	}
+
+	@Inject
+	public abstract ExecOperations getExecOperations();
+
+	@Override
+	public void execute() {
+		File chartTestOutputFolder = getParameters().getChartTestOutputFolder().get().getAsFile();
+		HelmRenderCache renderCache = new HelmRenderCache(getParameters().getRenderCacheFolder().get().getAsFile(),
+				getParameters().getMetrics().get());
+		Map<String, String> renderCacheKeys = getParameters().getRenderCacheKeys().get();
+		for (HelmTestCase helmTestCase : getParameters().getTestCases().get()) {
+			File testCaseOutputFolder = new File(chartTestOutputFolder, helmTestCase.name);
+			testCaseOutputFolder.mkdirs();
+			try (HelmTracer.Span span = getParameters().getTracer()
+					.get()
+					.startSpan("test case " + helmTestCase.name, getParameters().getParentSpanId().get()))
+			{
+				HelmTestCaseResult result = runSingleTestCase(helmTestCase,
+						testCaseOutputFolder,
+						renderCache,
+						renderCacheKeys.get(helmTestCase.name));
+				span.attribute("helm.chart", getParameters().getChartFolder().get().getAsFile().getName())
+						.attribute("test.failures", result.getFailures().size());
+				if (!result.getFailures().isEmpty()) {
+					span.error(result.getFailures().get(0).message);
+				}
+				result.writeTo(new File(testCaseOutputFolder, HelmTestCaseResult.RESULT_FILE_NAME));
+			}
+		}
+	}
+
+	private HelmTestCaseResult runSingleTestCase(HelmTestCase helmTestCase, File testCaseOutputFolder, HelmRenderCache renderCache, String renderCacheKey) {
+		LOGGER.info("Running test case {}: {}", helmTestCase.name, helmTestCase.title);
+		long start = System.currentTimeMillis();
+		HelmTestCaseResult result = new HelmTestCaseResult(helmTestCase.name, helmTestCase.title);
+		File chartFolder = getParameters().getChartFolder().get().getAsFile();
+
+		if (helmTestCase.succeed) {
+			if (getParameters().getLintWithValuesSupported().get()) {
+				HelmPlugin.HelmExecResult lintExecResult;
+				try (HelmTracer.Span ignored = startSpan("lint")) {
+					lintExecResult = renderCache.exec(renderCacheKey, "lint", () -> helmLint(chartFolder, helmTestCase));
+				}
+				result.record(lintExecResult);
+				if (lintExecResult.failed()) {
+					result.fail("Linting with test values failed",
+							String.join("\n", lintExecResult.output),
+							new AssertionError("Linting with test values failed"));
+				}
+			}
+			if (getParameters().getTemplateWithOutputSupported().get()) {
+				LOGGER.debug("Templating and asserting ...");
+				List<String> shownFiles = shownFiles(helmTestCase);
+				HelmRenderCache.CapturedExecution template;
+				try (HelmTracer.Span ignored = startSpan("template").attribute("helm.shown.files", shownFiles.size())) {
+					template = renderCache.execCapturing(renderCacheKey,
+							templateCommand(shownFiles),
+							() -> helmTemplate(chartFolder, helmTestCase, shownFiles));
+					if (template.execResult.failed() && !shownFiles.isEmpty()) {
+						// helm refuses to show templates rendering nothing, a full render reports this like before
+						LOGGER.debug("Rendering {} failed, rendering the whole chart", shownFiles);
+						template = renderCache.execCapturing(renderCacheKey,
+								templateCommand(Collections.emptyList()),
+								() -> helmTemplate(chartFolder, helmTestCase, Collections.emptyList()));
+					}
+				}
+				HelmPlugin.HelmExecResult helmExecResult = template.execResult;
+				result.record(helmExecResult);
+				if (helmExecResult.succeeded()) {
+					HelmManifests manifests = template.manifests;
+					LOGGER.debug("Rendered {} manifests", manifests.size());
+					try (HelmTracer.Span ignored = startSpan("assertions")) {
+						runAssertions(helmTestCase, manifests, chartFolder.getName(), result);
+					}
+					if (getParameters().getWriteManifests().get() || !result.getFailures().isEmpty()) {
+						writeManifests(manifests, testCaseOutputFolder);
+					}
+				} else {
+					result.fail("failed to template chart",
+							String.join("\n", helmExecResult.output),
+							new AssertionError("failed to template chart"));
+				}
+			}
+		} else {
+			HelmPlugin.HelmExecResult template = renderCache.exec(renderCacheKey,
+					"template-expecting-failure",
+					() -> helmExecutor().exec(
+							getParameters().getHelmSpec().get(),
+							"template",
+							HelmTestTask.VALUES_OPTION,
+							helmTestCase.valueFile.getAbsolutePath(),
+							chartFolder.getAbsolutePath()));
+			result.record(template);
+			if (template.succeeded()) {
+				result.fail("failed to fail template",
+						"Templating should fail, but succeeded.",
+						new AssertionError("Helm template for test '"
+								+ helmTestCase.name
+								+ "' succeeded when it shall not"));
+			}
+		}
+		result.setDurationMillis(System.currentTimeMillis() - start);
+		return result;
+	}
+
+	private void runAssertions(HelmTestCase helmTestCase, HelmManifests manifests, String chartName, HelmTestCaseResult result) {
+		LOGGER.info("running assertions...");
+		// every rendered file is parsed once, no matter how many assertions refer to it
+		Map<String, List<Object>> documentsByFile = new HashMap<>();
+		helmTestCase.assertions.forEach(helmTestAssertion -> {
+			String manifestPath = chartName + "/" + helmTestAssertion.file;
+			String manifest = manifests.get(manifestPath);
+			if (manifest == null) {
+				result.fail("failed to find file " + manifestPath,
+						null,
+						new AssertionError("Test '"
+								+ helmTestCase.title
+								+ "' requires file  "
+								+ manifestPath
+								+ " which has not been rendered."));
+				return;
+			}
+			try {
+				List<Object> documents = documentsByFile.computeIfAbsent(manifestPath, path -> {
+					List<Object> loaded = StreamSupport.stream(HelmPlugin.yaml().loadAll(manifest).spliterator(), false)
+							.filter(Objects::nonNull)
+							.collect(Collectors.toList());
+					LOGGER.debug("Loaded {}: {}", path, loaded);
+					return loaded;
+				});
+				helmTestAssertion.execute(documents);
+			} catch (AssertionError e) {
+				result.fail(e.getMessage(), null, e);
+			}
+		});
+	}
+
+	private static void writeManifests(HelmManifests manifests, File testCaseOutputFolder) {
+		try {
+			manifests.writeTo(testCaseOutputFolder);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the files the assertions of the test case refer to, empty if the whole chart needs to be rendered
+	 */
+	private List<String> shownFiles(HelmTestCase helmTestCase) {
+		if (!getParameters().getTemplateShowOnlySupported().get()) {
+			return Collections.emptyList();
+		}
+		return helmTestCase.assertions.stream()
+				.map(helmTestAssertion -> helmTestAssertion.file)
+				.distinct()
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	private static String templateCommand(List<String> shownFiles) {
+		return shownFiles.isEmpty()
+				? "template-output"
+				: "template-output-" + Digests.sha256().add(String.join("\n", shownFiles)).hex();
+	}
+
+	// the manifests are read from the standard output while helm renders rather than written to files by helm
+	private HelmRenderCache.CapturedExecution helmTemplate(File chartFolder, HelmTestCase helmTestCase, List<String> shownFiles) {
+		List<Object> arguments = new ArrayList<>();
+		arguments.add("template");
+		arguments.add(HelmTestTask.VALUES_OPTION);
+		arguments.add(helmTestCase.valueFile.getAbsolutePath());
+		for (String shownFile : shownFiles) {
+			arguments.add("--show-only");
+			arguments.add(shownFile);
+		}
+		arguments.add(chartFolder.getAbsolutePath());
+		HelmManifests manifests = new HelmManifests();
+		HelmPlugin.HelmExecResult execResult = helmExecutor().execWithOutput(
+				getParameters().getHelmSpec().get(),
+				new HelmOutput().onStandardOutput(manifests),
+				arguments.toArray());
+		return new HelmRenderCache.CapturedExecution(execResult, manifests);
+	}
+
+	private HelmExecutor helmExecutor() {
+		return HelmExecutor.forking(getExecOperations())
+				.meteredBy(getParameters().getMetrics().get(), getParameters().getTaskPath().get())
+				.tracedBy(getParameters().getTracer().get());
+	}
+
+	private HelmTracer.Span startSpan(String name) {
+		return getParameters().getTracer().get().startSpan(name);
+	}
+
+	private HelmPlugin.HelmExecResult helmLint(File chartFolder, HelmTestCase helmTestCase) {
+		LOGGER.debug("Linting ...");
+		return helmExecutor().exec(
+				getParameters().getHelmSpec().get(),
+				"lint",
+				HelmTestTask.VALUES_OPTION,
+				helmTestCase.valueFile.getAbsolutePath(),
+				chartFolder.getAbsolutePath());
+	}
+}
@@ -0,0 +1,39 @@
+package com.kiwigrid.k8s.helm
+
+import java.nio.charset.StandardCharsets
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class DigestsTest extends Specification {
+
+	@Rule
+	TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	def "parts are not mistaken for differently split parts"() {
+		expect:
+		Digests.sha256().add("ab").add("c").hex() != Digests.sha256().add("a").add("bc").hex()
+		Digests.sha256().addContent(null).add("").hex() != Digests.sha256().add("").addContent(null).hex()
+		Digests.sha256().addContent(null).hex() != Digests.sha256().addContent(new byte[0]).hex()
+		Digests.sha256().addContent([0, 0] as byte[]).hex() != Digests.sha256().addContent([0] as byte[]).addContent(null).hex()
+	}
+
+	def "a missing file is added like missing content"() {
+		given:
+		def file = temporaryFolder.newFile("present.txt")
+		file.text = "content"
+
+		expect:
+		Digests.sha256().addFile(new File(temporaryFolder.root, "missing.txt")).hex() == Digests.sha256().addContent(null).hex()
+		Digests.sha256().addFile(file).hex() == Digests.sha256().addContent("content".getBytes(StandardCharsets.UTF_8)).hex()
+	}
+
+	def "checksum is the plain SHA-256 of a file"() {
+		given:
+		def file = temporaryFolder.newFile("empty.txt")
+
+		expect:
+		Digests.checksum(file) == "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"
+	}
+}
@@ -1,17 +1,23 @@
 package com.kiwigrid.k8s.helm
 
+import java.util.zip.GZIPInputStream
+
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration
 import com.github.tomakehurst.wiremock.http.RequestMethod
 import com.github.tomakehurst.wiremock.junit.WireMockRule
 import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder
 import com.github.tomakehurst.wiremock.matching.UrlPattern
+import groovy.json.JsonSlurper
+import org.apache.tools.tar.TarInputStream
 import org.gradle.testkit.runner.GradleRunner
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import static org.gradle.testkit.runner.TaskOutcome.SKIPPED
 import static org.gradle.testkit.runner.TaskOutcome.SUCCESS
+import static org.gradle.testkit.runner.TaskOutcome.UP_TO_DATE
 
 class HelmPluginTest extends Specification {
 
@@ -113,6 +119,182 @@ class HelmPluginTest extends Specification {
 		helmVersion << ["2.17.0", "3.0.0"]
 	}
 
+	def "chart tests run concurrently with helm #helmVersion and are reported in a stable order"() {
+		given:
+		TestProjects.createChartProjectWithCustomPaths(
+				testProjectDir,
+				buildFile,
+				helmVersion
+		)
+		buildFile << """
+            helmChartTest() {
+                parallelism = 2
+            }
+            """.stripIndent()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--info", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartTest").outcome == SUCCESS
+		def report = new File(testProjectDir.root, "/build/helm/test/${PROJECT_NAME}/helm-junit-report.xml").text
+		report.indexOf('classname="structtest"') < report.indexOf('classname="valuetest"')
+		!report.contains("<failure")
+
+		where:
+		helmVersion << ["2.17.0", "3.0.0"]
+	}
+
+	def "chart is not packaged again with helm #helmVersion if its rendered content did not change"() {
+		given:
+		TestProjects.createChartProjectWithCustomPaths(
+				testProjectDir,
+				buildFile,
+				helmVersion
+		)
+		GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartBuild", "--stacktrace")
+				.build()
+		// an expansion no chart file refers to
+		buildFile << """
+            helm.expansions.put("unused", "changed")
+            """.stripIndent()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartBuild", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartBuild").outcome == SUCCESS
+		result.output.contains("Chart content unchanged")
+		new File(testProjectDir.root, "/build/helm/repo/${PROJECT_NAME}-1.0.0.tgz").exists()
+
+		where:
+		helmVersion << ["2.17.0", "3.0.0"]
+	}
+
+	def "a chart rebuilt with unchanged dependencies is packaged along with its generated lock"() {
+		given:
+		testProjectDir.newFolder("library", "templates")
+		testProjectDir.newFile("library/Chart.yaml") << """\
+            apiVersion: v2
+            name: library
+            version: 0.1.0
+            """.stripIndent()
+		testProjectDir.newFolder("src", "main", "helm", "templates")
+		testProjectDir.newFile("src/main/helm/Chart.yaml") << """\
+            apiVersion: v2
+            name: ${PROJECT_NAME}
+            version: 1.0.0
+            dependencies:
+            - name: library
+              version: 0.1.0
+              repository: file://${testProjectDir.root.absolutePath}/library
+            """.stripIndent()
+		testProjectDir.newFile("src/main/helm/values.yaml") << "replicaCount: \${replicaCount}\n"
+		buildFile << """\
+            helm {
+                version "3.0.0"
+                expansions = [replicaCount: 1]
+            }
+            """.stripIndent()
+		def packageFile = new File(testProjectDir.root, "build/helm/repo/${PROJECT_NAME}-1.0.0.tgz")
+		GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartBuild", "--stacktrace")
+				.build()
+		def firstEntries = packageEntries(packageFile)
+		buildFile << """
+            helm.expansions.put("replicaCount", 2)
+            """.stripIndent()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartBuild", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartBuild").outcome == SUCCESS
+		result.output.contains("dependencies unchanged")
+		firstEntries.containsAll([PROJECT_NAME + "/Chart.lock", PROJECT_NAME + "/charts/library-0.1.0.tgz"])
+		packageEntries(packageFile) == firstEntries
+	}
+
+	def "a packaged chart with sub charts and ignored files is read by helm #helmVersion"() {
+		given:
+		TestProjects.createSimpleChartProject(
+				testProjectDir,
+				buildFile,
+				helmVersion,
+				wireMockRule.baseUrl(),
+				"PUT")
+		testProjectDir.newFolder("src", "main", "helm", "charts", "cache", "templates")
+		testProjectDir.newFile("src/main/helm/charts/cache/Chart.yaml") << """\
+            apiVersion: v1
+            name: cache
+            version: 0.1.0
+            """.stripIndent()
+		testProjectDir.newFile("src/main/helm/charts/cache/values.yaml") << "port: 6379\n"
+		testProjectDir.newFile("src/main/helm/charts/cache/templates/service.yaml") << """\
+            kind: Service
+            apiVersion: v1
+            metadata:
+              name: {{ .Release.Name }}-cache
+            spec:
+              ports:
+              - port: {{ .Values.port }}
+            """.stripIndent()
+		testProjectDir.newFile("src/main/helm/charts/README.md") << "ignored"
+		testProjectDir.newFile("src/main/helm/values.yaml.bak") << "ignored"
+		testProjectDir.newFile("src/main/helm/.helmignore") << """\
+            *.bak
+            charts/*.md
+            """.stripIndent()
+		buildFile << """
+            tasks.register("inspectPackage") {
+                dependsOn "downloadHelm", "helmChartBuild"
+                doLast {
+                    def archive = file("build/helm/repo/\${project.name}-\${project.version}.tgz")
+                    def inspect = helm.version.startsWith("2.") ? "inspect" : "show"
+                    com.kiwigrid.k8s.helm.HelmPlugin.helmExecSuccess(project, helm, "lint", archive).each { println it }
+                    com.kiwigrid.k8s.helm.HelmPlugin.helmExecSuccess(project, helm, inspect, "chart", archive).each { println it }
+                }
+            }
+            """.stripIndent()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":inspectPackage", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":inspectPackage").outcome == SUCCESS
+		result.output.contains("1 chart(s) linted")
+		result.output.contains("name: ${PROJECT_NAME}")
+		def entries = packageEntries(new File(testProjectDir.root, "build/helm/repo/${PROJECT_NAME}-1.0.0.tgz"))
+		entries.containsAll([
+				"${PROJECT_NAME}/charts/cache/Chart.yaml".toString(),
+				"${PROJECT_NAME}/charts/cache/templates/service.yaml".toString()])
+		!entries.any { it.endsWith(".bak") || it.endsWith(".md") }
+
+		where:
+		helmVersion << ["2.17.0", "3.0.0"]
+	}
+
 	def "two chart in one project can be build and tested with helm #helmVersion"() {
 		given:
 		TestProjects.createChartProjectWithTwoDifferentCharts(
@@ -139,4 +321,385 @@ class HelmPluginTest extends Specification {
 		where:
 		helmVersion << ["2.17.0", "3.0.0"]
 	}
+
+	def "charts declared in the DSL are built by tasks of their own and tested together with helm #helmVersion"() {
+		given:
+		TestProjects.createProjectWithChartsContainer(
+				testProjectDir,
+				buildFile,
+				helmVersion
+		)
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartBuildFrontend").outcome == SUCCESS
+		result.task(":helmChartBuildBackend").outcome == SUCCESS
+		result.task(":helmChartBuild").outcome == SKIPPED
+		result.task(":helmChartTest").outcome == SUCCESS
+		new File(testProjectDir.root, "/build/helm/charts/frontend/frontend-1.0.0.tgz").exists()
+		new File(testProjectDir.root, "/build/helm/charts/backend/backend-2.0.0.tgz").exists()
+		!new File(testProjectDir.root, "/build/helm/repo").exists()
+		["frontend", "backend"].each { chartName ->
+			def report = new File(testProjectDir.root, "/build/helm/test/${chartName}/helm-junit-report.xml").text
+			assert report.contains("Replicas of ${chartName} can be set")
+			assert !report.contains("<failure")
+		}
+
+		where:
+		helmVersion << ["2.17.0", "3.0.0"]
+	}
+
+	def "a single declared chart is tested with the tests in its own folder"() {
+		given:
+		TestProjects.createProjectWithChartsContainer(testProjectDir, buildFile, "3.0.0", ["frontend"])
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartTest").outcome == SUCCESS
+		new File(testProjectDir.root, "/build/helm/test/frontend/helm-junit-report.xml").text
+				.contains("Replicas of frontend can be set")
+	}
+
+	def "a declared chart without tests folder is reported if the tests folder holds tests"() {
+		given:
+		TestProjects.createProjectWithChartsContainer(testProjectDir, buildFile, "3.0.0")
+		def frontendTests = new File(testProjectDir.root, "src/test/helm/frontend")
+		new File(frontendTests, "replicas.yaml").renameTo(new File(testProjectDir.root, "src/test/helm/replicas.yaml"))
+		frontendTests.delete()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmChartTest").outcome == SUCCESS
+		result.output.contains("No tests of chart frontend found in")
+		!new File(testProjectDir.root, "/build/helm/test/frontend/helm-junit-report.xml").text
+				.contains("Replicas of frontend can be set")
+	}
+
+	def "charts are uploaded concurrently"() {
+		given:
+		TestProjects.createProjectWithChartsContainer(
+				testProjectDir,
+				buildFile,
+				"3.0.0"
+		)
+		buildFile << """\
+            helm {
+                repositories {
+                    mockrepo {
+                        url "${wireMockRule.baseUrl()}/"
+                        deployVia('PUT').toFetchUrl()
+                    }
+                }
+                deployTo repositories.mockrepo
+            }
+            helmDeploy {
+                parallelism = 2
+            }
+            """.stripIndent()
+		TestHelmRepositories.emptyHelmRepoAcceptingPostOrPut(wireMockRule, "PUT")
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmDeploy", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmDeploy").outcome == SUCCESS
+		def publications = wireMockRule.findAll(RequestPatternBuilder.newRequestPattern(RequestMethod.PUT, UrlPattern.ANY))
+		publications*.url.toSorted() == ["/backend-2.0.0.tgz", "/frontend-1.0.0.tgz"]
+		result.output.contains("KiB/s")
+	}
+
+	def "failed uploads are retried"() {
+		given:
+		TestProjects.createSimpleChartProject(
+				testProjectDir,
+				buildFile,
+				"3.0.0",
+				wireMockRule.baseUrl(),
+				"PUT")
+		TestHelmRepositories.helmRepoFailingFirstUpload(wireMockRule, "PUT")
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmDeploy", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmDeploy").outcome == SUCCESS
+		result.output.contains("retrying in 500 ms")
+		wireMockRule.findAll(RequestPatternBuilder.newRequestPattern(RequestMethod.PUT, UrlPattern.ANY)).size() == 2
+	}
+
+	def "rejected uploads are not retried"() {
+		given:
+		TestProjects.createSimpleChartProject(
+				testProjectDir,
+				buildFile,
+				"3.0.0",
+				wireMockRule.baseUrl(),
+				"PUT")
+		TestHelmRepositories.helmRepoRejectingUploads(wireMockRule, "PUT")
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmDeploy", "--stacktrace")
+				.buildAndFail()
+
+		then:
+		result.output.contains("Code 401")
+		!result.output.contains("retrying")
+		wireMockRule.findAll(RequestPatternBuilder.newRequestPattern(RequestMethod.PUT, UrlPattern.ANY)).size() == 1
+	}
+
+	def "charts are uploaded to a repository without index when existing charts are skipped"() {
+		given:
+		TestProjects.createSimpleChartProject(
+				testProjectDir,
+				buildFile,
+				"3.0.0",
+				wireMockRule.baseUrl(),
+				"PUT")
+		buildFile << """\
+            helmDeploy {
+                skipExisting = true
+            }
+            """.stripIndent()
+		TestHelmRepositories.helmRepoWithoutIndexAcceptingPostOrPut(wireMockRule, "PUT")
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmDeploy", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmDeploy").outcome == SUCCESS
+		wireMockRule.findAll(RequestPatternBuilder.newRequestPattern(RequestMethod.PUT, UrlPattern.ANY)).size() == 1
+	}
+
+	def "repositories are added concurrently from the shared index cache into one repositories.yaml"() {
+		given:
+		buildFile << """\
+            helm {
+                version "3.0.0"
+                repositories {
+                    first {
+                        url "${wireMockRule.baseUrl()}/"
+                    }
+                    second {
+                        url "${wireMockRule.baseUrl()}/"
+                    }
+                    third {
+                        url "${wireMockRule.baseUrl()}/"
+                    }
+                }
+            }
+            helmRepoSync {
+                parallelism = 2
+            }
+            """.stripIndent()
+		TestHelmRepositories.emptyHelmRepoAcceptingPostOrPut(wireMockRule, "PUT")
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmRepoSync", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmRepoSync").outcome == SUCCESS
+		result.output.contains("Added 3 helm repositories")
+		def repositoriesYaml = new File(testProjectDir.root, "build/helm/home/config/helm/repositories.yaml").text
+		["first", "second", "third"].every { repositoriesYaml.contains("name: ${it}") }
+		repositoriesYaml.count("url: ${wireMockRule.baseUrl()}/") == 3
+		new File(testProjectDir.root, "build/helm/home/cache/helm/repository/second-index.yaml").isFile()
+		// the repositories share the url, so helm gets the index from the shared cache
+		wireMockRule.findAll(RequestPatternBuilder.newRequestPattern(RequestMethod.GET, UrlPattern.ANY)).size() == 1
+	}
+
+	def "a missing index of a known repository is placed from the shared index cache"() {
+		given:
+		buildFile << """\
+            helm {
+                version "3.0.0"
+                repositories {
+                    first {
+                        url "${wireMockRule.baseUrl()}/"
+                    }
+                }
+            }
+            """.stripIndent()
+		TestHelmRepositories.emptyHelmRepoAcceptingPostOrPut(wireMockRule, "PUT")
+		GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmRepoSync", "--stacktrace")
+				.build()
+		def firstIndex = new File(testProjectDir.root, "build/helm/home/cache/helm/repository/first-index.yaml")
+		firstIndex.delete()
+		buildFile << """\
+            helm.repositories {
+                second {
+                    url "${wireMockRule.baseUrl()}/"
+                }
+            }
+            """.stripIndent()
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmRepoSync", "--info", "--stacktrace")
+				.build()
+
+		then:
+		result.task(":helmRepoSync").outcome == SUCCESS
+		result.output.contains("Added 1 helm repositories")
+		result.output.contains("Placed cached index of helm repository first")
+		firstIndex.isFile()
+	}
+
+	def "repository sync is up to date until the configured repositories change"() {
+		given:
+		buildFile << """\
+            helm {
+                version "3.0.0"
+                repositories {
+                    mockrepo {
+                        url "${wireMockRule.baseUrl()}"
+                    }
+                }
+            }
+            """.stripIndent()
+		TestHelmRepositories.emptyHelmRepoAcceptingPostOrPut(wireMockRule, "PUT")
+		def runner = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmRepoSync", "--stacktrace")
+
+		when:
+		def first = runner.build()
+		def second = runner.build()
+		buildFile << """\
+            helm.repositories.mockrepo.user "happy-dev"
+            """.stripIndent()
+		def third = runner.build()
+
+		then:
+		first.task(":helmRepoSync").outcome == SUCCESS
+		second.task(":helmRepoSync").outcome == UP_TO_DATE
+		third.task(":helmRepoSync").outcome == SUCCESS
+	}
+
+	def "chart build and test reuse the configuration cache with helm #helmVersion"() {
+		given:
+		TestProjects.createChartProjectWithCustomPaths(
+				testProjectDir,
+				buildFile,
+				helmVersion
+		)
+		def runner = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--configuration-cache", "--stacktrace")
+
+		when:
+		def first = runner.build()
+		def second = runner.build()
+
+		then:
+		first.task(":helmChartTest").outcome == SUCCESS
+		second.output.contains("Reusing configuration cache.")
+		second.task(":helmChartBuild").outcome == UP_TO_DATE
+		second.task(":helmChartTest").outcome == UP_TO_DATE
+
+		where:
+		helmVersion << ["2.17.0", "3.0.0"]
+	}
+
+	def "helm executions are reported when the build finishes"() {
+		given:
+		TestProjects.createChartProjectWithCustomPaths(
+				testProjectDir,
+				buildFile,
+				"3.0.0"
+		)
+
+		when:
+		def result = GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "--stacktrace")
+				.build()
+
+		then:
+		result.output.contains("helm lint:")
+		def report = new JsonSlurper().parse(new File(testProjectDir.root, "build/reports/helm/metrics.json"))
+		report.subcommands.lint.executions > 0
+		report.invocations.every { it.task in [":helmChartBuild", ":helmChartTest"] }
+	}
+
+	def "chart build and test are traced into the given file"() {
+		given:
+		TestProjects.createChartProjectWithCustomPaths(
+				testProjectDir,
+				buildFile,
+				"3.0.0"
+		)
+
+		when:
+		GradleRunner.create()
+				.withProjectDir(testProjectDir.root)
+				.withPluginClasspath()
+				.withArguments(":helmChartTest", "-PhelmTraceFile=build/trace.jsonl", "--stacktrace")
+				.build()
+
+		then:
+		def lines = new File(testProjectDir.root, "build/trace.jsonl").readLines()
+		lines.size() == 1
+		def spans = new JsonSlurper().parseText(lines[0]).resourceSpans[0].scopeSpans[0].spans
+		def spanNames = spans.collect { it.name }
+		spanNames.containsAll(["gradle build", "helm chart build", "render", "package", "helm chart test", "helm lint"])
+		spans.collect { it.traceId }.unique().size() == 1
+		def spanIds = spans.collect { it.spanId } as Set
+		spans.findAll { it.parentSpanId }.every { spanIds.contains(it.parentSpanId) }
+	}
+
+	private static List<String> packageEntries(File packageFile) {
+		def entries = []
+		new TarInputStream(new GZIPInputStream(new FileInputStream(packageFile))).withCloseable { tar ->
+			def entry
+			while ((entry = tar.nextEntry) != null) {
+				entries << entry.name
+			}
+		}
+		entries
+	}
 }
@@ -1,6 +1,7 @@
 package com.kiwigrid.k8s.helm
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule
+import com.github.tomakehurst.wiremock.stubbing.Scenario
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*
 
@@ -21,4 +22,32 @@ class TestHelmRepositories {
 		wireMockRule.stubFor(request(method, anyUrl())
 				.willReturn(aResponse().withStatus(204)))
 	}
+
+	static def helmRepoWithoutIndexAcceptingPostOrPut(WireMockRule wireMockRule, String method) {
+		wireMockRule.stubFor(
+				get(urlEqualTo("/index.yaml"))
+						.willReturn(aResponse().withStatus(404))
+		)
+		wireMockRule.stubFor(request(method, anyUrl())
+				.willReturn(aResponse().withStatus(204)))
+	}
+
+	static def helmRepoRejectingUploads(WireMockRule wireMockRule, String method) {
+		emptyHelmRepoAcceptingPostOrPut(wireMockRule, method)
+		wireMockRule.stubFor(request(method, anyUrl())
+				.willReturn(aResponse().withStatus(401)))
+	}
+
+	static def helmRepoFailingFirstUpload(WireMockRule wireMockRule, String method) {
+		emptyHelmRepoAcceptingPostOrPut(wireMockRule, method)
+		wireMockRule.stubFor(request(method, anyUrl())
+				.inScenario("flaky upload")
+				.whenScenarioStateIs(Scenario.STARTED)
+				.willReturn(aResponse().withStatus(503))
+				.willSetStateTo("recovered"))
+		wireMockRule.stubFor(request(method, anyUrl())
+				.inScenario("flaky upload")
+				.whenScenarioStateIs("recovered")
+				.willReturn(aResponse().withStatus(204)))
+	}
 }
@@ -295,4 +295,49 @@ class TestProjects {
             value: mydeployment2
         """.stripIndent()
 	}
+
+	static def createProjectWithChartsContainer(TemporaryFolder testProjectDir, File buildFile, String helmVersion, List<String> chartNames = ["frontend", "backend"]) {
+		buildFile << """\
+            helm {
+                version "${helmVersion}"
+                expansions = [
+                    helm: [
+                        chartVersion: project.version
+                    ]
+                ]
+                charts {
+                    ${chartNames.contains("frontend") ? "frontend" : ""}
+                    ${chartNames.contains("backend") ? "backend { expansions = [helm: [chartVersion: '2.0.0']] }" : ""}
+                }
+            }
+            """.stripIndent()
+		chartNames.each { chartName ->
+			testProjectDir.newFolder("src", "main", "helm", chartName, "templates")
+			testProjectDir.newFolder("src", "test", "helm", chartName)
+			testProjectDir.newFile("src/main/helm/${chartName}/Chart.yaml") << """\
+            apiVersion: v1
+            description: A simple good working helm chart
+            name: ${chartName}
+            version: \${helm.chartVersion}
+            """.stripIndent()
+			testProjectDir.newFile("src/main/helm/${chartName}/templates/deployment.yaml") << """\
+            kind: Deployment
+            apiVersion: extensions/v1beta1
+            metadata:
+              name: ${chartName}
+            spec:
+              replicas: {{ .Values.replicas | default 1 }}
+            """.stripIndent()
+			testProjectDir.newFile("src/test/helm/${chartName}/replicas.yaml") << """\
+            title: "Replicas of ${chartName} can be set"
+            values:
+              replicas: 3
+            assert:
+              - file: templates/deployment.yaml
+                test: "eq"
+                path: "[0]['spec']['replicas']"
+                value: 3
+            """.stripIndent()
+		}
+	}
 }
@@ -0,0 +1,192 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import java.util.zip.GZIPInputStream
+
+import org.apache.tools.tar.TarEntry
+import org.apache.tools.tar.TarInputStream
+import org.gradle.api.GradleException
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class HelmChartPackagerTest extends Specification {
+
+	@Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	def "charts of the same content are packaged byte for byte the same"() {
+		given:
+		def first = chart("first")
+		def second = chart("second")
+		new File(second, "values.yaml").lastModified = 1000L
+
+		when:
+		def firstArchive = HelmChartPackager.pack(first, temporaryFolder.newFolder("firstOut")).archive
+		def secondArchive = HelmChartPackager.pack(second, temporaryFolder.newFolder("secondOut")).archive
+
+		then:
+		firstArchive.name == "mychart-1.0.0.tgz"
+		firstArchive.bytes == secondArchive.bytes
+		entries(firstArchive).every { it.modTime.time == 315532800000L && it.userName == "" && it.mode == 0100644 }
+	}
+
+	def "files matching .helmignore are left out"() {
+		given:
+		def chartFolder = chart("ignoring")
+		new File(chartFolder, ".helmignore").text = """\
+            # comments and blank lines are skipped
+
+            docs/
+            *.bak
+            """.stripIndent()
+		new File(chartFolder, "docs").mkdirs()
+		new File(chartFolder, "docs/README.md").text = "ignored"
+		new File(chartFolder, "values.yaml.bak").text = "ignored"
+		new File(chartFolder, "templates/.hidden").text = "ignored"
+
+		when:
+		def archive = HelmChartPackager.pack(chartFolder, temporaryFolder.newFolder("out")).archive
+
+		then:
+		entries(archive).collect { it.name } == [
+				"mychart/.helmignore",
+				"mychart/Chart.yaml",
+				"mychart/templates/deployment.yaml",
+				"mychart/values.yaml"]
+	}
+
+	def "a negated rule ignores every path it does not match, the way helm does"() {
+		given:
+		def chartFolder = chart("negating")
+		new File(chartFolder, ".helmignore").text = """\
+            *.bak
+            !*.yaml
+            """.stripIndent()
+		new File(chartFolder, "values.yaml.bak").text = "ignored by the first rule"
+		new File(chartFolder, "NOTES.txt").text = "ignored by the negated rule"
+
+		when:
+		def archive = HelmChartPackager.pack(chartFolder, temporaryFolder.newFolder("out")).archive
+
+		then:
+		entries(archive).collect { it.name } == [
+				"mychart/Chart.yaml",
+				"mychart/values.yaml"]
+	}
+
+	def "a negated rule does not bring back a path ignored by an earlier rule"() {
+		given:
+		def chartFolder = chart("reincluding")
+		new File(chartFolder, ".helmignore").text = """\
+            values.yaml
+            !values.yaml
+            """.stripIndent()
+
+		expect:
+		HelmIgnore.load(chartFolder).isIgnored("values.yaml", false)
+		HelmIgnore.load(chartFolder).isIgnored("Chart.yaml", false)
+		HelmIgnore.load(chartFolder).isIgnored("templates", true)
+	}
+
+	def "a negated directory rule ignores every file"() {
+		given:
+		def chartFolder = chart("negated-directory")
+		new File(chartFolder, ".helmignore").text = "!templates/\n"
+
+		expect:
+		!HelmIgnore.load(chartFolder).isIgnored("templates", true)
+		HelmIgnore.load(chartFolder).isIgnored("charts", true)
+		HelmIgnore.load(chartFolder).isIgnored("templates/deployment.yaml", false)
+	}
+
+	def "sub charts in charts/ are packaged along with the chart, minus the files matching .helmignore"() {
+		given:
+		def library = chart("library")
+		new File(library, "Chart.yaml").text = "apiVersion: v1\nname: library\nversion: 0.1.0\n"
+		def chartFolder = chart("with-sub-charts")
+		new File(chartFolder, "requirements.yaml").text = """\
+            dependencies:
+            - name: library
+              version: 0.1.0
+              repository: https://charts.example.com
+            - name: redis
+              version: 10.5.7
+              repository: https://charts.example.com
+            """.stripIndent()
+		new File(chartFolder, ".helmignore").text = """\
+            *.bak
+            charts/*.md
+            """.stripIndent()
+		HelmChartPackager.pack(library, new File(chartFolder, "charts"))
+		new File(chartFolder, "charts/README.md").text = "ignored"
+		new File(chartFolder, "charts/redis/templates").mkdirs()
+		new File(chartFolder, "charts/redis/Chart.yaml").text = "apiVersion: v1\nname: redis\nversion: 10.5.7\n"
+		new File(chartFolder, "charts/redis/templates/service.yaml").text = "kind: Service\n"
+		new File(chartFolder, "charts/redis/values.yaml.bak").text = "ignored"
+
+		when:
+		def archive = HelmChartPackager.pack(chartFolder, temporaryFolder.newFolder("out")).archive
+
+		then:
+		entries(archive).collect { it.name } == [
+				"mychart/.helmignore",
+				"mychart/Chart.yaml",
+				"mychart/charts/library-0.1.0.tgz",
+				"mychart/charts/redis/Chart.yaml",
+				"mychart/charts/redis/templates/service.yaml",
+				"mychart/requirements.yaml",
+				"mychart/templates/deployment.yaml",
+				"mychart/values.yaml"]
+	}
+
+	def "a chart without version is rejected"() {
+		given:
+		def chartFolder = chart("unversioned")
+		new File(chartFolder, "Chart.yaml").text = "name: mychart\n"
+
+		when:
+		HelmChartPackager.pack(chartFolder, temporaryFolder.newFolder("out"))
+
+		then:
+		thrown(GradleException)
+	}
+
+	def "a chart missing a declared dependency in charts/ is rejected"() {
+		given:
+		def chartFolder = chart("missing-dependency")
+		new File(chartFolder, "requirements.yaml").text = """\
+            dependencies:
+            - name: postgresql
+              version: 8.6.4
+              repository: https://charts.example.com
+            """.stripIndent()
+		new File(chartFolder, "charts/redis").mkdirs()
+		new File(chartFolder, "charts/redis/Chart.yaml").text = "apiVersion: v1\nname: redis\nversion: 10.5.7\n"
+
+		when:
+		HelmChartPackager.pack(chartFolder, temporaryFolder.newFolder("out"))
+
+		then:
+		def e = thrown(GradleException)
+		e.message.contains("[postgresql]")
+	}
+
+	private File chart(String folderName) {
+		def chartFolder = temporaryFolder.newFolder(folderName)
+		new File(chartFolder, "templates").mkdirs()
+		new File(chartFolder, "Chart.yaml").text = "apiVersion: v1\nname: mychart\nversion: 1.0.0\n"
+		new File(chartFolder, "values.yaml").text = "replicaCount: 1\n"
+		new File(chartFolder, "templates/deployment.yaml").text = "kind: Deployment\n"
+		chartFolder
+	}
+
+	private static List<TarEntry> entries(File archive) {
+		def entries = []
+		new TarInputStream(new GZIPInputStream(new FileInputStream(archive))).withCloseable { tar ->
+			def entry
+			while ((entry = tar.nextEntry) != null) {
+				entries << entry
+			}
+		}
+		entries
+	}
+}
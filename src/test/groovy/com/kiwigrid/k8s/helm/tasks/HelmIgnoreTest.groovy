@@ -0,0 +1,69 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import org.gradle.api.GradleException
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class HelmIgnoreTest extends Specification {
+
+	@Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	def "without .helmignore only hidden files of the templates folder are ignored"() {
+		given:
+		def helmIgnore = HelmIgnore.load(temporaryFolder.root)
+
+		expect:
+		helmIgnore.isIgnored("templates/.hidden", false)
+		!helmIgnore.isIgnored("templates/deployment.yaml", false)
+		!helmIgnore.isIgnored(".hidden", false)
+	}
+
+	def "rule '#rule' #description '#path'"() {
+		given:
+		temporaryFolder.newFile(HelmIgnore.FILE_NAME).text = """\
+            # a comment
+
+            ${rule}
+            """.stripIndent()
+
+		expect:
+		HelmIgnore.load(temporaryFolder.root).isIgnored(path, directory) == ignored
+
+		where:
+		rule               | path                          | directory || ignored
+		"*.bak"            | "values.yaml.bak"             | false     || true
+		"*.bak"            | "templates/service.yaml.bak"  | false     || true
+		"*.bak"            | "values.yaml"                 | false     || false
+		"values.?aml"      | "values.yaml"                 | false     || true
+		"values.[xy]aml"   | "values.yaml"                 | false     || true
+		"values.[^y]aml"   | "values.yaml"                 | false     || false
+		"charts/*.md"      | "charts/README.md"            | false     || true
+		"charts/*.md"      | "charts/redis/README.md"      | false     || false
+		"charts/*.md"      | "README.md"                   | false     || false
+		"/docs"            | "docs"                        | true      || true
+		"/docs"            | "templates/docs"              | true      || false
+		"docs/"            | "docs"                        | true      || true
+		"docs/"            | "docs"                        | false     || false
+		"docs"             | "templates/docs"              | true      || true
+		"# values.yaml"    | "values.yaml"                 | false     || false
+		"!*.yaml"          | "NOTES.txt"                   | false     || true
+		"!*.yaml"          | "values.yaml"                 | false     || false
+		"\\*.bak"          | "*.bak"                       | false     || true
+		"\\*.bak"          | "values.bak"                  | false     || false
+
+		description = ignored ? "ignores" : "keeps"
+	}
+
+	def "rules with ** are rejected like helm does"() {
+		given:
+		temporaryFolder.newFile(HelmIgnore.FILE_NAME).text = "docs/**/*.md\n"
+
+		when:
+		HelmIgnore.load(temporaryFolder.root)
+
+		then:
+		def e = thrown(GradleException)
+		e.message.contains("docs/**/*.md")
+	}
+}
@@ -0,0 +1,40 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class HelmJunitReportWriterTest extends Specification {
+
+	@Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	def "test cases are written as escaped, well formed junit xml"() {
+		given:
+		def reportFile = temporaryFolder.newFile("report.xml")
+		def passed = new HelmTestCaseResult("suite/values", "values & more")
+		passed.setDurationMillis(1500)
+		def failed = new HelmTestCaseResult("suite/struct", "<struct>")
+		failed.fail("failed to template chart", "Error: \u001b[31mbroken\u001b[0m", new AssertionError("failed"))
+		failed.fail("value is not \"1\"", null, new AssertionError("not 1"))
+
+		when:
+		new HelmJunitReportWriter(reportFile, "my-chart", 3).withCloseable { writer ->
+			writer.testCase(passed)
+			writer.testCase(failed)
+			writer.skippedTestCase("other", "Other", "name does not match pattern.*x")
+		}
+
+		then:
+		def testsuite = new XmlSlurper().parse(reportFile).testsuite
+		testsuite.@name == "my-chart"
+		testsuite.@tests == "3"
+		testsuite.testcase.size() == 3
+		testsuite.testcase[0].@name == "values & more"
+		testsuite.testcase[0].@time == "1.500"
+		testsuite.testcase[1].@name == "<struct>"
+		testsuite.testcase[1].failure.size() == 2
+		testsuite.testcase[1].failure[0].text() == "Error: [31mbroken[0m"
+		testsuite.testcase[1].failure[1].@message == 'value is not "1"'
+		testsuite.testcase[2].skipped.size() == 1
+	}
+}
@@ -0,0 +1,62 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class HelmManifestsTest extends Specification {
+
+	@Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	static final String TEMPLATE_OUTPUT = """\
+        ---
+        # Source: mychart/templates/service.yaml
+        kind: Service
+        metadata:
+          name: first
+        ---
+        # Source: mychart/templates/deployment.yaml
+        kind: Deployment
+        ---
+        # Source: mychart/templates/service.yaml
+        kind: Service
+        metadata:
+          name: second
+        """.stripIndent()
+
+	def "documents are grouped by their source"() {
+		when:
+		def manifests = HelmManifests.read(TEMPLATE_OUTPUT)
+
+		then:
+		manifests.size() == 2
+		manifests.get("mychart/templates/deployment.yaml") == """\
+            ---
+            # Source: mychart/templates/deployment.yaml
+            kind: Deployment
+            """.stripIndent()
+		manifests.get("mychart/templates/service.yaml").count("kind: Service") == 2
+		manifests.get("mychart/templates/missing.yaml") == null
+	}
+
+	def "manifests read line by line equal those read as a whole"() {
+		given:
+		def manifests = new HelmManifests()
+
+		when:
+		TEMPLATE_OUTPUT.eachLine { manifests.accept(it) }
+
+		then:
+		manifests.size() == 2
+		manifests.get("mychart/templates/service.yaml") == HelmManifests.read(TEMPLATE_OUTPUT).get("mychart/templates/service.yaml")
+	}
+
+	def "manifests are written like helm template --output-dir does"() {
+		when:
+		HelmManifests.read(TEMPLATE_OUTPUT).writeTo(temporaryFolder.root)
+
+		then:
+		new File(temporaryFolder.root, "mychart/templates/deployment.yaml").text.contains("kind: Deployment")
+		new File(temporaryFolder.root, "mychart/templates/service.yaml").text.contains("name: second")
+	}
+}
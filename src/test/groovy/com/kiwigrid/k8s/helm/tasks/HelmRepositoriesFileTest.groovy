@@ -0,0 +1,60 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+class HelmRepositoriesFileTest extends Specification {
+
+	@Rule TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+	def "entries are changed in place keeping unknown attributes"() {
+		given:
+		def file = temporaryFolder.newFile("repositories.yaml")
+		file.text = """\
+            apiVersion: v1
+            generated: "2021-04-01T15:07:54.499029981+01:00"
+            repositories:
+            - name: stable
+              url: https://charts.helm.sh/stable
+              caFile: /etc/ca.pem
+            - name: obsolete
+              url: https://example.com/obsolete
+            """.stripIndent()
+		def added = temporaryFolder.newFile("added.yaml")
+		added.text = """\
+            apiVersion: v1
+            repositories:
+            - name: mine
+              url: https://example.com/mine
+            """.stripIndent()
+
+		when:
+		def repositoriesFile = HelmRepositoriesFile.load(file)
+		repositoriesFile.remove("obsolete")
+		repositoriesFile.putAll(HelmRepositoriesFile.load(added))
+		repositoriesFile.setCredentials("mine", "user", "secret")
+		repositoriesFile.write()
+		def written = HelmRepositoriesFile.load(file)
+
+		then:
+		written.getNames() as List == ["stable", "mine"]
+		written.get("stable").caFile == "/etc/ca.pem"
+		written.get("mine").username == "user"
+		written.get("mine").password == "secret"
+	}
+
+	def "an unchanged file is not written"() {
+		given:
+		def file = new File(temporaryFolder.root, "config/helm/repositories.yaml")
+
+		when:
+		def repositoriesFile = HelmRepositoriesFile.load(file)
+		repositoriesFile.remove("unknown")
+		repositoriesFile.write()
+
+		then:
+		repositoriesFile.getNames().isEmpty()
+		!file.exists()
+	}
+}
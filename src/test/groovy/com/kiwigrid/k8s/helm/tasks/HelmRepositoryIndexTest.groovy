@@ -0,0 +1,52 @@
+package com.kiwigrid.k8s.helm.tasks
+
+import java.nio.charset.StandardCharsets
+
+import spock.lang.Specification
+
+class HelmRepositoryIndexTest extends Specification {
+
+	def "name, version and digest of every entry are read"() {
+		given:
+		def index = HelmRepositoryIndex.read(new ByteArrayInputStream("""\
+            apiVersion: v1
+            entries:
+              my-chart:
+              - apiVersion: v1
+                created: 2021-04-01T15:07:54.499029981+01:00
+                digest: 5e7a1e0c
+                maintainers:
+                - name: someone
+                  email: someone@example.com
+                name: my-chart
+                urls:
+                - charts/my-chart-1.0.0.tgz
+                version: 1.0.0
+              - digest: 77f2a9b1
+                name: my-chart
+                version: 1.1.0-rc.1
+              other:
+              - version: 2.0.0
+            generated: 2021-04-01T15:07:54.499029981+01:00
+            """.stripIndent().getBytes(StandardCharsets.UTF_8)))
+
+		expect:
+		index.contains("my-chart-1.0.0.tgz", "5E7A1E0C")
+		index.contains("my-chart-1.1.0-rc.1.tgz", "77f2a9b1")
+		!index.contains("my-chart-1.1.0-rc.1.tgz", "5e7a1e0c")
+		!index.contains("other-2.0.0.tgz", "5e7a1e0c")
+		!index.contains("missing-1.0.0.tgz", "5e7a1e0c")
+	}
+
+	def "an index without entries is empty"() {
+		given:
+		def index = HelmRepositoryIndex.read(new ByteArrayInputStream("""\
+            apiVersion: v1
+            entries:
+            generated: 2021-04-01T15:07:54.499029981+01:00
+            """.stripIndent().getBytes(StandardCharsets.UTF_8)))
+
+		expect:
+		!index.contains("my-chart-1.0.0.tgz", "5e7a1e0c")
+	}
+}